@@ -0,0 +1,78 @@
+package RedBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * RedBoxEngine.go from memory to memory for one MiB, in each format. The key is stretched
+ * before the benchmark, so an operation is the cascade setup and the three layers.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EngineBenchmark {
+
+	/*
+	 * plain text bytes of an operation
+	 */
+	private static final int SIZE = 1024*1024;
+
+	@Param({ "STREAM", "CHUNKED", "SEEKABLE" })
+	public RedBoxEngine.format format;
+
+	private RedBoxEngine engine;
+	private EncryptionKey key;
+	private final byte[] plain = new byte[SIZE];
+	private byte[] encrypted;
+
+
+	@Setup
+	public void setup() throws Exception {
+		engine = new RedBoxEngine(format);
+		key = new EncryptionKey("benchmark");
+		encrypted = go(RedBoxEngine.mode.ENCRYPT, plain);
+	}
+
+
+	@Benchmark
+	public byte[] encrypt() throws Exception {
+		return go(RedBoxEngine.mode.ENCRYPT, plain);
+	}
+
+
+	@Benchmark
+	public byte[] decrypt() throws Exception {
+		return go(RedBoxEngine.mode.DECRYPT, encrypted);
+	}
+
+
+	/**
+	 * run the engine over bytes in memory
+	 *
+	 * @param command encrypt or decrypt
+	 * @param input bytes to read
+	 * @return bytes written
+	 * @throws Exception on error
+	 */
+	private byte[] go(final RedBoxEngine.mode command, final byte[] input) throws Exception {
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE + 1024);
+		engine.go(command, key, Channels.newChannel(new ByteArrayInputStream(input)), Channels.newChannel(bos));
+		return bos.toByteArray();
+	}
+}
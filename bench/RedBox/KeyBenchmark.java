@@ -0,0 +1,47 @@
+package RedBox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * stretchKey at several key lengths. Stretching is meant to be slow, so there are
+ * few iterations.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class KeyBenchmark {
+
+	@Param({ "16", "64", "256", "1024" })
+	public int keyLength;
+
+	private EncryptionKey key;
+	private byte[] input;
+
+
+	@Setup
+	public void setup() {
+		input = new byte[keyLength];
+		for (int i = 0; i < input.length; i++) {
+			input[i] = (byte) i;
+		}
+		key = new EncryptionKey(input);
+	}
+
+
+	@Benchmark
+	public byte[] stretchKey() {
+		return key.stretchKey(input);
+	}
+}
@@ -0,0 +1,72 @@
+package cipher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RedBox.EncryptionKey;
+
+
+/**
+ * AES CipherStream encrypting and decrypting one MiB, as the number of layers grows. A key
+ * of n bytes is stretched to n + 48, so it has n / 16 + 3 layers. The key is stretched
+ * before the benchmark.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CipherStreamBenchmark {
+
+	/*
+	 * plain text bytes of an operation
+	 */
+	private static final int SIZE = 1024*1024;
+
+	@Param({ "4", "8", "16" })
+	public int layers;
+
+	private CipherStream cipher;
+	private final byte[] plain = new byte[SIZE];
+	private byte[] encrypted;
+
+
+	@Setup
+	public void setup() throws Exception {
+
+		final EncryptionKey key = new EncryptionKey(new byte[(layers - 3) * 16]);
+		key.getBytes();
+		cipher = new CipherStream("AES/CFB/NoPadding", 16, key);
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE + cipher.headerSize());
+		cipher.encrypt(new ByteArrayInputStream(plain), bos);
+		encrypted = bos.toByteArray();
+	}
+
+
+	@Benchmark
+	public int encrypt() throws Exception {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(encrypted.length);
+		cipher.encrypt(new ByteArrayInputStream(plain), bos);
+		return bos.size();
+	}
+
+
+	@Benchmark
+	public int decrypt() throws Exception {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE);
+		cipher.decrypt(new ByteArrayInputStream(encrypted), bos);
+		return bos.size();
+	}
+}
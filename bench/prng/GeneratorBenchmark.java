@@ -0,0 +1,57 @@
+package prng;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * each generator: one number at a time, and bytes in bulk. A bulk operation is one MiB,
+ * so its throughput score is in MB/s.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GeneratorBenchmark {
+
+	/*
+	 * bytes made by a bulk operation
+	 */
+	static final int BULK = 1024*1024;
+
+	@Param({ "Random64", "MersenneTwister", "XORShift", "DigestRandom", "MultiplyWithCarry",
+			"BlumBlumShub", "CBRNG", "CTRRandom", "FusedMultiRandom" })
+	public String generator;
+
+	private ExtendedRandom random;
+	private final byte[] bytes = new byte[BULK];
+
+
+	@Setup
+	public void setup() throws Exception {
+		random = (ExtendedRandom) Class.forName("prng." + generator).getDeclaredConstructor().newInstance();
+		random.setSeed(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+	}
+
+
+	@Benchmark
+	public int nextInt() {
+		return random.nextInt();
+	}
+
+
+	@Benchmark
+	public byte[] nextBytes() {
+		random.nextBytes(bytes, 0, bytes.length);
+		return bytes;
+	}
+}
@@ -0,0 +1,47 @@
+package prng;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * MultiRandom with its default generators. Every number is from a generator selected by
+ * the one before, so nextInt is mostly the cost of the selection. A bulk operation is
+ * one MiB.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MultiRandomBenchmark {
+
+	private MultiRandom random;
+	private final byte[] bytes = new byte[GeneratorBenchmark.BULK];
+
+
+	@Setup
+	public void setup() {
+		random = new MultiRandom(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+	}
+
+
+	@Benchmark
+	public int nextInt() {
+		return random.nextInt();
+	}
+
+
+	@Benchmark
+	public byte[] nextBytes() {
+		random.nextBytes(bytes, 0, bytes.length);
+		return bytes;
+	}
+}
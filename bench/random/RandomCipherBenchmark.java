@@ -0,0 +1,87 @@
+package random;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import RedBox.EncryptionKey;
+
+
+/**
+ * RandomCipherOutputStream and RandomCipherInputStream over one MiB, with the keystream
+ * made on the calling thread or ahead on another.
+ *
+ * @author mclark
+ *
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RandomCipherBenchmark {
+
+	/*
+	 * plain text bytes of an operation
+	 */
+	private static final int SIZE = 1024*1024;
+
+	@Param({ "false", "true" })
+	public boolean prefetch;
+
+	private EncryptionKey key;
+	private final byte[] plain = new byte[SIZE];
+	private final byte[] buffer = new byte[1024*64];
+	private byte[] encrypted;
+
+
+	@Setup
+	public void setup() throws Exception {
+		key = new EncryptionKey("benchmark");
+		key.getBytes();
+		encrypted = write();
+	}
+
+
+	@Benchmark
+	public byte[] encrypt() throws Exception {
+		return write();
+	}
+
+
+	@Benchmark
+	public long decrypt() throws Exception {
+
+		long total = 0;
+		try (final InputStream is = new RandomCipherInputStream(new ByteArrayInputStream(encrypted), key, prefetch)) {
+			int n;
+			while ((n = is.read(buffer)) > 0) {
+				total += n;
+			}
+		}
+		return total;
+	}
+
+
+	/**
+	 * @return the plain text, encrypted
+	 * @throws Exception on error
+	 */
+	private byte[] write() throws Exception {
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(SIZE + 1024);
+		try (final OutputStream os = new RandomCipherOutputStream(bos, key, prefetch)) {
+			os.write(plain);
+		}
+		return bos.toByteArray();
+	}
+}
@@ -0,0 +1,259 @@
+package RedBox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import cipher.BufferCipher;
+
+
+/**
+ * file to file encryption with asynchronous I/O. Reads for the next buffers and the
+ * writes of the previous ones are kept in flight while the cascade works on the current
+ * buffer, so on slow or network storage disk latency overlaps the cipher work instead
+ * of adding to it.
+ *
+ * @author mclark
+ *
+ */
+class AsyncFileEngine {
+
+	/*
+	 * buffers in flight in each direction
+	 */
+	private static final int DEPTH = 4;
+
+	/*
+	 * bytes per read
+	 */
+	private static final int BUFFER_SIZE = 1024*256;
+
+
+	/**
+	 * run a file through a transform into another file
+	 *
+	 * @param transform encryptor or decryptor
+	 * @param source file to read
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 */
+	void transform(final BufferCipher transform, final Path source, final Path target) throws IOException {
+		transform(transform, source, 0, new byte[0], target);
+	}
+
+
+	/**
+	 * run part of a file through a transform into another file, after a header. The
+	 * transform is closed afterwards, however the run ends.
+	 *
+	 * @param transform encryptor or decryptor
+	 * @param source file to read
+	 * @param start file position of the first byte to transform
+	 * @param header bytes written to the target before the transformed bytes
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 */
+	void transform(final BufferCipher transform, final Path source, final long start,
+			final byte[] header, final Path target) throws IOException {
+
+		try {
+			run(transform, source, start, header, target);
+		} finally {
+			transform.close();
+		}
+	}
+
+
+	/**
+	 * the work of transform()
+	 *
+	 * @param transform encryptor or decryptor
+	 * @param source file to read
+	 * @param start file position of the first byte to transform
+	 * @param header bytes written to the target before the transformed bytes
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 */
+	private void run(final BufferCipher transform, final Path source, final long start,
+			final byte[] header, final Path target) throws IOException {
+
+		try (final AsynchronousFileChannel input = AsynchronousFileChannel.open(source, StandardOpenOption.READ);
+			 final AsynchronousFileChannel output = AsynchronousFileChannel.open(target,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			final long size = input.size();
+
+			final ByteBuffer[] in = new ByteBuffer[DEPTH];
+			final ByteBuffer[] out = new ByteBuffer[DEPTH];
+			final long[] readOffset = new long[DEPTH];
+			final long[] writeOffset = new long[DEPTH];
+			@SuppressWarnings("unchecked")
+			final Future<Integer>[] reads = (Future<Integer>[]) new Future<?>[DEPTH];
+			@SuppressWarnings("unchecked")
+			final Future<Integer>[] writes = (Future<Integer>[]) new Future<?>[DEPTH];
+
+			final int outSize = transform.getOutputSize(BUFFER_SIZE);
+			long nextRead = start;
+			long nextWrite = header.length;
+
+			if (header.length > 0) {
+				final ByteBuffer head = ByteBuffer.wrap(header);
+				finishWrite(output, head, output.write(head, 0), 0);
+			}
+
+			try {
+				// start the first reads
+				for (int i = 0; i < DEPTH; i++) {
+					in[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+					out[i] = ByteBuffer.allocateDirect(outSize);
+					if (nextRead < size) {
+						readOffset[i] = nextRead;
+						reads[i] = input.read(in[i], nextRead);
+						nextRead += BUFFER_SIZE;
+					}
+				}
+
+				int slot = 0;
+				boolean end = start >= size;
+
+				if (end) {
+					in[0].limit(0);
+					out[0].clear();
+					transform.doFinal(in[0], out[0]);
+					out[0].flip();
+					writeOffset[0] = nextWrite;
+					writes[0] = output.write(out[0], nextWrite);
+				}
+
+				while (!end) {
+
+					finishRead(input, in[slot], reads[slot], readOffset[slot], size);
+					reads[slot] = null;
+					end = readOffset[slot] + in[slot].position() >= size;
+					in[slot].flip();
+
+					// the output buffer of this slot may still be being written
+					finishWrite(output, out[slot], writes[slot], writeOffset[slot]);
+					writes[slot] = null;
+
+					out[slot].clear();
+					if (end) {
+						transform.doFinal(in[slot], out[slot]);
+					} else {
+						transform.update(in[slot], out[slot]);
+					}
+					out[slot].flip();
+
+					writeOffset[slot] = nextWrite;
+					nextWrite += out[slot].remaining();
+					writes[slot] = output.write(out[slot], writeOffset[slot]);
+
+					// reuse the input buffer for a read further ahead
+					in[slot].clear();
+					if (nextRead < size) {
+						readOffset[slot] = nextRead;
+						reads[slot] = input.read(in[slot], nextRead);
+						nextRead += BUFFER_SIZE;
+					}
+
+					slot = (slot + 1) % DEPTH;
+				}
+
+				for (int i = 0; i < DEPTH; i++) {
+					finishWrite(output, out[i], writes[i], writeOffset[i]);
+					writes[i] = null;
+				}
+
+			} finally {
+				for (int i = 0; i < DEPTH; i++) {
+					if (reads[i] != null) reads[i].cancel(true);
+					if (writes[i] != null) writes[i].cancel(true);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * wait for a read, reading again until the buffer is full or the end of the file
+	 * is reached, so the buffers stay contiguous.
+	 *
+	 * @param channel input
+	 * @param buffer buffer being read into
+	 * @param pending read in flight
+	 * @param offset file position of the start of the buffer
+	 * @param size file size
+	 * @throws IOException on error
+	 */
+	private static void finishRead(final AsynchronousFileChannel channel, final ByteBuffer buffer,
+			Future<Integer> pending, final long offset, final long size) throws IOException {
+
+		while (true) {
+			final int n = await(pending);
+
+			if (n < 0 || !buffer.hasRemaining() || offset + buffer.position() >= size) {
+				return;
+			}
+
+			pending = channel.read(buffer, offset + buffer.position());
+		}
+	}
+
+
+	/**
+	 * wait for a write, writing again until the whole buffer is written
+	 *
+	 * @param channel output
+	 * @param buffer buffer being written
+	 * @param pending write in flight, or null
+	 * @param offset file position of the start of the buffer
+	 * @throws IOException on error
+	 */
+	private static void finishWrite(final AsynchronousFileChannel channel, final ByteBuffer buffer,
+			Future<Integer> pending, final long offset) throws IOException {
+
+		if (pending == null) {
+			return;
+		}
+
+		long written = 0;
+
+		while (true) {
+			written += await(pending);
+
+			if (!buffer.hasRemaining()) {
+				return;
+			}
+
+			pending = channel.write(buffer, offset + written);
+		}
+	}
+
+
+	/**
+	 * wait for an I/O operation
+	 *
+	 * @param pending operation in flight
+	 * @return number of bytes transferred
+	 * @throws IOException if the operation failed
+	 */
+	private static int await(final Future<Integer> pending) throws IOException {
+
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package RedBox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * headless batch processing of many files and directories in one JVM. The keys are
+ * derived once for the whole batch, directories are walked recursively, and files
+ * are spread over a bounded pool of workers. Each file gets a new name the same way
+ * the RedBox window names them; the original is left in place.
+ *
+ * @author mclark
+ *
+ */
+public class BatchEngine {
+
+	/*
+	 * extension added to encrypted files
+	 */
+	static final String default_encrypt_extension = ".bin";
+
+	/*
+	 * extension for decrypted files with no extension to remove
+	 */
+	static final String default_decrypt_extension = ".decrypt";
+
+	/*
+	 * exit status when some files failed
+	 */
+	public static final int EXIT_FAILED = 2;
+
+	private final RedBoxEngine engine;
+	private final RedBoxEngine.mode command;
+	private final EncryptionKey KEY;
+	private final ThreadPoolExecutor workers;
+
+	private final AtomicInteger completed = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+
+	/**
+	 * create a batch. Stretched keys are cached, so the cascade keys are derived
+	 * from the key once, or once for each key derivation found in the files.
+	 *
+	 * @param engine engine settings used for every file
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param threads number of files processed at once
+	 */
+	public BatchEngine(final RedBoxEngine engine, final RedBoxEngine.mode command,
+			final EncryptionKey KEY, final int threads) {
+
+		this.engine = engine;
+		this.command = command;
+		this.KEY = KEY;
+
+		/*
+		 * the queue is bounded so walking a huge directory doesn't queue every file
+		 * at once; when it is full the walking thread runs the file itself.
+		 */
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 4),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+
+	/**
+	 * process files and directories, then wait for all of them.
+	 *
+	 * @param paths files and directories
+	 * @return 0 if every file succeeded, EXIT_FAILED otherwise
+	 */
+	public int run(final String... paths) {
+
+		/*
+		 * every file is found before any is processed, so the targets written into
+		 * the directories aren't found by the walk and processed again
+		 */
+		final List<File> files = new ArrayList<File>();
+		for (String path : paths) {
+			collect(new File(path), files);
+		}
+
+		for (final File file : files) {
+			workers.execute(new Runnable() {
+				public void run() {
+					process(file);
+				}
+			});
+		}
+
+		workers.shutdown();
+		try {
+			while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+				// keep waiting
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			workers.shutdownNow();
+			failed.incrementAndGet();
+		}
+
+		System.err.println(completed.get() + " files completed, " + failed.get() + " failed");
+		return failed.get() == 0 ? 0 : EXIT_FAILED;
+	}
+
+
+	/**
+	 * find a file, or every file under a directory. Symbolic links found in the walk
+	 * are not followed, so a link back up the tree can't make it endless and a linked
+	 * file outside the tree isn't written next to; a file or directory named on the
+	 * command line is used even if it is a link. Files that already have the extension
+	 * this batch adds are skipped.
+	 *
+	 * @param file file or directory
+	 * @param files list the files are added to
+	 */
+	private void collect(final File file, final List<File> files) {
+
+		if (file.isFile()) {
+			add(file, files);
+			return;
+		}
+
+		try {
+			final Path start = file.isDirectory() ? file.toPath().toRealPath() : file.toPath();
+
+			Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+
+				public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
+
+					if (attrs.isRegularFile()) {
+						add(path.toFile(), files);
+					} else if (attrs.isSymbolicLink()) {
+						System.err.println("not following link " + path);
+					} else {
+						System.err.println("not a file " + path);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult visitFileFailed(final Path path, final IOException e) {
+					System.err.println(path + "\t" + e);
+					failed.incrementAndGet();
+					return FileVisitResult.CONTINUE;
+				}
+
+				public FileVisitResult postVisitDirectory(final Path dir, final IOException e) {
+					if (e != null) {
+						System.err.println("cannot read directory " + dir);
+						failed.incrementAndGet();
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+
+		} catch (IOException e) {
+			System.err.println(file + "\t" + e);
+			failed.incrementAndGet();
+		}
+	}
+
+
+	/**
+	 * add a file to the batch unless it has the extension the batch adds, which
+	 * makes it the output of an earlier run
+	 *
+	 * @param file file found
+	 * @param files list of files to process
+	 */
+	private void add(final File file, final List<File> files) {
+
+		final String extension = command.equals(RedBoxEngine.mode.ENCRYPT)
+				? default_encrypt_extension : default_decrypt_extension;
+
+		if (file.getName().endsWith(extension)) {
+			System.err.println("skipping " + file);
+		} else {
+			files.add(file);
+		}
+	}
+
+
+	/**
+	 * encrypt or decrypt one file. A target left by a failed run is deleted.
+	 *
+	 * @param file file to process
+	 */
+	private void process(final File file) {
+
+		File target = null;
+
+		try {
+			synchronized (this) {
+				// naming checks for existing files, so only one at a time
+				final File name = targetFile(file, command);
+				if (!name.createNewFile()) {
+					throw new IOException("target exists " + name);
+				}
+				target = name;
+			}
+
+			engine.go(command, KEY, file.toPath(), target.toPath());
+			completed.incrementAndGet();
+			System.out.println(file + "\t" + target);
+
+		} catch (Exception e) {
+			failed.incrementAndGet();
+			System.err.println(file + "\t" + e);
+
+			if (target != null && !target.delete()) {
+				System.err.println("cannot delete " + target);
+			}
+		}
+	}
+
+
+	/**
+	 * name the file to create from a file to encrypt or decrypt. Encrypted files get
+	 * an extension added, decrypted files have it removed. A number is added to the
+	 * name if the file already exists.
+	 *
+	 * @param file file to process
+	 * @param command encrypt or decrypt
+	 * @return file to create
+	 * @throws IOException on error
+	 */
+	static File targetFile(final File file, final RedBoxEngine.mode command) throws IOException {
+
+		File cfile;
+
+		if (command.equals(RedBoxEngine.mode.ENCRYPT)) {
+			cfile = new File(file.getAbsolutePath() + default_encrypt_extension);
+
+			int fileUniquer = 1;
+			while (cfile.exists()) {
+				cfile = new File(file.getAbsolutePath() + fileUniquer++ + default_encrypt_extension);
+			}
+
+		} else {
+
+			String fname = file.getAbsolutePath();
+			int fileUniquer = 1;
+
+			if (fname.lastIndexOf(".") > -1 ) {
+				cfile = new File(fname.substring(0, fname.lastIndexOf(".")));
+				while (cfile.exists()) {
+					cfile = new File(fname.substring(0, fname.lastIndexOf(".")) + fileUniquer++);
+				}
+			} else {
+				cfile = new File(fname + default_decrypt_extension);
+				while (cfile.exists()) {
+					cfile = new File(fname + fileUniquer++ + default_decrypt_extension);
+				}
+			}
+		}
+
+		return cfile;
+	}
+}
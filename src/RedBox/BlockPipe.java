@@ -0,0 +1,261 @@
+package RedBox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * a stream connection between two threads. The producer writes to output() and the
+ * consumer reads from input(). Data moves in a fixed set of pooled blocks: filled blocks
+ * go to the consumer through one ring buffer and empty blocks return to the producer
+ * through another, so nothing is allocated once the pipe is created. A side waiting
+ * for a block is parked until the other side hands one over.
+ *
+ * If either side fails the pipe is marked failed and the other side gets an
+ * IOException instead of waiting forever.
+ *
+ * @author mclark
+ *
+ */
+class BlockPipe {
+
+	/*
+	 * unit of transfer. A length of -1 marks the end of the stream.
+	 */
+	private static final class Block {
+		final byte[] data;
+		int length;
+
+		Block(final int size) {
+			data = new byte[size];
+		}
+	}
+
+	/*
+	 * blocks ready for the consumer
+	 */
+	private final RingBuffer<Block> full;
+
+	/*
+	 * blocks ready for the producer to fill
+	 */
+	private final RingBuffer<Block> free;
+
+	/*
+	 * first failure of either side
+	 */
+	private volatile Throwable failure = null;
+
+	private final PipeOutputStream output = new PipeOutputStream();
+	private final PipeInputStream input = new PipeInputStream();
+
+
+	/**
+	 * create a pipe
+	 *
+	 * @param blocks number of blocks in the pool
+	 * @param blockSize bytes per block
+	 */
+	BlockPipe(final int blocks, final int blockSize) {
+
+		full = new RingBuffer<Block>(blocks);
+		free = new RingBuffer<Block>(blocks);
+
+		for (int i = 0; i < blocks; i++) {
+			free.offer(new Block(blockSize));
+		}
+	}
+
+
+	/**
+	 * the producer side of the pipe
+	 *
+	 * @return stream to write to
+	 */
+	OutputStream output() {
+		return output;
+	}
+
+
+	/**
+	 * the consumer side of the pipe
+	 *
+	 * @return stream to read from
+	 */
+	InputStream input() {
+		return input;
+	}
+
+
+	/**
+	 * mark the pipe failed so a thread waiting on the other side stops.
+	 *
+	 * @param cause reason for the failure
+	 */
+	void fail(final Throwable cause) {
+		if (failure == null) {
+			failure = cause;
+		}
+
+		// wake whichever side is waiting
+		full.close();
+		free.close();
+	}
+
+
+	/**
+	 * take a block from a ring, waiting until one is available
+	 *
+	 * @param ring ring to take from
+	 * @return block
+	 * @throws IOException if the pipe failed while waiting
+	 */
+	private Block take(final RingBuffer<Block> ring) throws IOException {
+
+		Block block;
+
+		while ((block = ring.take()) == null) {
+
+			if (failure != null) {
+				throw new IOException("pipe failed", failure);
+			}
+
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted");
+			}
+		}
+
+		return block;
+	}
+
+
+	/**
+	 * hand a block to a ring. Rings are as large as the pool, so there is always room.
+	 *
+	 * @param ring ring to add to
+	 * @param block block
+	 */
+	private static void give(final RingBuffer<Block> ring, final Block block) {
+		ring.offer(block);
+	}
+
+
+	/**
+	 * producer side: fills blocks and hands them to the consumer
+	 */
+	private final class PipeOutputStream extends OutputStream {
+
+		private Block current = null;
+		private boolean closed = false;
+
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(final byte[] b, int offset, int len) throws IOException {
+
+			if (closed) {
+				throw new IOException("pipe closed");
+			}
+
+			while (len > 0) {
+
+				if (current == null) {
+					current = take(free);
+					current.length = 0;
+				}
+
+				final int n = Math.min(len, current.data.length - current.length);
+				System.arraycopy(b, offset, current.data, current.length, n);
+				current.length += n;
+				offset += n;
+				len -= n;
+
+				if (current.length == current.data.length) {
+					give(full, current);
+					current = null;
+				}
+			}
+		}
+
+		public void flush() throws IOException {
+			if (current != null && current.length > 0) {
+				give(full, current);
+				current = null;
+			}
+		}
+
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+
+			flush();
+
+			final Block end = take(free);
+			end.length = -1;
+			give(full, end);
+			closed = true;
+		}
+	}
+
+
+	/**
+	 * consumer side: reads blocks and returns them to the producer when empty
+	 */
+	private final class PipeInputStream extends InputStream {
+
+		private Block current = null;
+		private int position = 0;
+
+		public int read() throws IOException {
+
+			final byte[] b = new byte[1];
+			return read(b, 0, 1) > 0 ? b[0] & 0xFF : -1;
+		}
+
+		public int read(final byte[] b, final int offset, final int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (current != null && current.length < 0) {
+				return -1;
+			}
+
+			if (current == null || position == current.length) {
+
+				if (current != null) {
+					give(free, current);
+				}
+
+				current = take(full);
+				position = 0;
+
+				if (current.length < 0) {
+					return -1;
+				}
+			}
+
+			final int n = Math.min(len, current.length - position);
+			System.arraycopy(current.data, position, b, offset, n);
+			position += n;
+			return n;
+		}
+
+		public int available() {
+			return current == null || current.length < 0 ? 0 : current.length - position;
+		}
+
+		public void close() {
+			// a consumer that stops early must not leave the producer waiting
+			if (current == null || current.length >= 0) {
+				fail(new IOException("pipe closed by reader"));
+			}
+		}
+	}
+}
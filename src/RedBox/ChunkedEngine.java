@@ -0,0 +1,314 @@
+package RedBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * chunked container format. The input is split into fixed size chunks and each chunk is
+ * encrypted as its own cascade stream, with its own initialization vectors and RandomCipher
+ * nonce. Chunks do not depend on each other so they are encrypted and decrypted in parallel
+ * on a fork-join pool, and written in order.
+ *
+ * <pre>
+ *   MAGIC (8 bytes) | chunk size (int)
+ *   { encrypted chunk length (int) | encrypted chunk } ...
+ *   0 (int)
+ * </pre>
+ *
+ * The legacy single stream format has no header; it starts with random bytes, so it is
+ * recognized by the absence of the magic number.
+ *
+ * @author mclark
+ *
+ */
+public class ChunkedEngine {
+
+	/*
+	 * marks the start of a chunked container
+	 */
+	static final byte[] MAGIC = "RedBoxC1".getBytes(StandardCharsets.US_ASCII);
+
+	/*
+	 * default plain text bytes per chunk
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1024*1024*8;
+
+	/*
+	 * largest chunk accepted, so a damaged header can't cause a huge allocation
+	 */
+	private static final int MAX_CHUNK_SIZE = 1024*1024*256;
+
+	/*
+	 * upper bound for the IVs and nonce added to each chunk. The IV count grows
+	 * with the key length, which is at most 16K bytes for each layer.
+	 */
+	private static final int MAX_CHUNK_OVERHEAD = 1024*64;
+
+	/*
+	 * plain text bytes per chunk when encrypting
+	 */
+	private final int chunkSize;
+
+	/*
+	 * pool used to process the chunks
+	 */
+	private final ForkJoinPool pool;
+
+
+	/**
+	 * create an engine with the default chunk size using the common pool
+	 */
+	public ChunkedEngine() {
+		this(DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * create an engine
+	 *
+	 * @param chunkSize plain text bytes per chunk
+	 * @param pool pool that processes the chunks
+	 */
+	public ChunkedEngine(final int chunkSize, final ForkJoinPool pool) {
+
+		if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+			throw new IllegalArgumentException("chunk size out of range: " + chunkSize);
+		}
+
+		this.chunkSize = chunkSize;
+		this.pool = pool;
+	}
+
+
+	/**
+	 * number of chunks in flight. Bounds memory use to about twice this many chunks.
+	 *
+	 * @return chunks to keep in flight
+	 */
+	private int window() {
+		return pool.getParallelism() * 2;
+	}
+
+
+	/**
+	 * check for the chunked format magic number at the start of a stream. If the stream is
+	 * not chunked the bytes read are pushed back.
+	 *
+	 * @param in stream with room to push back MAGIC.length bytes
+	 * @return true if the stream is a chunked container, with the magic number consumed.
+	 * @throws IOException on error
+	 */
+	static boolean isChunked(final PushbackInputStream in) throws IOException {
+
+		final byte[] head = new byte[MAGIC.length];
+		final int len = readFully(in, head, head.length);
+
+		if (len == head.length && Arrays.equals(head, MAGIC)) {
+			return true;
+		}
+
+		if (len > 0) {
+			in.unread(head, 0, len);
+		}
+		return false;
+	}
+
+
+	/**
+	 * encrypt a stream into a chunked container
+	 *
+	 * @param cascade cipher cascade
+	 * @param in plain text
+	 * @param out container
+	 * @throws IOException on error
+	 */
+	void encrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final DataOutputStream dos = new DataOutputStream(out);
+		final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		dos.write(MAGIC);
+		dos.writeInt(chunkSize);
+
+		try {
+			while (true) {
+				final byte[] chunk = new byte[chunkSize];
+				final int len = readFully(in, chunk, chunkSize);
+
+				if (len <= 0) {
+					break;
+				}
+
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						final ByteArrayOutputStream bos = new ByteArrayOutputStream(len + 1024);
+						// the chunks already keep every processor busy, so no prefetch thread
+						cascade.encrypt(new ByteArrayInputStream(chunk, 0, len), bos, false);
+						return bos.toByteArray();
+					}
+				}));
+
+				if (pending.size() >= window()) {
+					writeChunk(dos, pending.remove());
+				}
+
+				if (len < chunkSize) {
+					break;
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				writeChunk(dos, pending.remove());
+			}
+
+			dos.writeInt(0);
+			dos.flush();
+
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			try { in.close(); } catch (Exception e) {};
+			try { out.close(); } catch (Exception e) {};
+		}
+	}
+
+
+	/**
+	 * decrypt a chunked container. The magic number must already have been read.
+	 *
+	 * @param cascade cipher cascade
+	 * @param in container, positioned after the magic number
+	 * @param out plain text
+	 * @throws IOException on error or a truncated container
+	 */
+	void decrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final DataInputStream dis = new DataInputStream(in);
+		final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		try {
+			final int size = dis.readInt();
+			if (size < 1 || size > MAX_CHUNK_SIZE) {
+				throw new IOException("invalid chunk size " + size);
+			}
+
+			while (true) {
+				final int len = dis.readInt();
+
+				if (len == 0) {
+					break;
+				} else if (len < 0 || len > size + MAX_CHUNK_OVERHEAD) {
+					throw new IOException("invalid chunk length " + len);
+				}
+
+				final byte[] chunk = new byte[len];
+				dis.readFully(chunk);
+
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						final ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+						cascade.decrypt(new ByteArrayInputStream(chunk), bos, false);
+						return bos.toByteArray();
+					}
+				}));
+
+				if (pending.size() >= window()) {
+					out.write(result(pending.remove()));
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				out.write(result(pending.remove()));
+			}
+			out.flush();
+
+		} catch (EOFException e) {
+			throw new IOException("truncated chunked container", e);
+
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			try { in.close(); } catch (Exception e) {};
+			try { out.close(); } catch (Exception e) {};
+		}
+	}
+
+	/**
+	 * write a finished chunk with its length
+	 *
+	 * @param dos container stream
+	 * @param chunk encrypted chunk
+	 * @throws IOException on error
+	 */
+	private static void writeChunk(final DataOutputStream dos, final Future<byte[]> chunk)
+			throws IOException {
+
+		final byte[] bytes = result(chunk);
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+
+	/**
+	 * wait for a chunk to be processed
+	 *
+	 * @param chunk chunk task
+	 * @return processed bytes
+	 * @throws IOException if the task failed
+	 */
+	static byte[] result(final Future<byte[]> chunk) throws IOException {
+
+		try {
+			return chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+
+	/**
+	 * read until the buffer is full or the end of the stream
+	 *
+	 * @param in stream to read
+	 * @param buffer buffer to fill
+	 * @param len number of bytes wanted
+	 * @return number of bytes read, which is less than len only at the end of the stream
+	 * @throws IOException on error
+	 */
+	static int readFully(final InputStream in, final byte[] buffer, final int len) throws IOException {
+
+		int total = 0;
+		int bytesRead = 0;
+
+		while (total < len && (bytesRead = in.read(buffer, total, len - total)) > 0) {
+			total += bytesRead;
+		}
+
+		return total;
+	}
+}
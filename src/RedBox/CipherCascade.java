@@ -0,0 +1,286 @@
+package RedBox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+import RedBox.EngineMetrics.Stage;
+import cipher.BufferChain;
+import cipher.BufferCipher;
+import cipher.CipherStream;
+import random.RandomCipher;
+import random.RandomCipherInputStream;
+import random.RandomCipherOutputStream;
+
+
+/**
+ * the AES -> Blowfish -> RandomCipher cascade used by the engine. The keys for each
+ * layer are derived from the user key once, when the cascade is created, so the same
+ * cascade can be used for any number of streams.
+ *
+ * @author mclark
+ *
+ */
+class CipherCascade {
+
+	/*
+	 * size of the direct buffers used for channels
+	 */
+	private static final int CHANNEL_BUFFER = 1024*64;
+
+	final EncryptionKey aesKey;
+	final CipherStream aesCipher;
+	final EncryptionKey blowfishKey;
+	final CipherStream blowfishCipher;
+	final EncryptionKey randomKey;
+
+	/*
+	 * make the RandomCipher keystream ahead on another thread
+	 */
+	final boolean prefetch;
+
+
+	/**
+	 * derive the layer keys from the user key
+	 *
+	 * @param KEY user encryption key
+	 * @throws IOException on error creating the cipher streams
+	 */
+	CipherCascade(final EncryptionKey KEY) throws IOException {
+		this(KEY, CipherStream.DEFAULT_BUFFER_SIZE);
+	}
+
+
+	/**
+	 * derive the layer keys from the user key
+	 *
+	 * @param KEY user encryption key
+	 * @param bufferSize buffer size of the cipher streams
+	 * @throws IOException on error creating the cipher streams
+	 */
+	CipherCascade(final EncryptionKey KEY, final int bufferSize) throws IOException {
+		this(KEY, bufferSize, false);
+	}
+
+
+	/**
+	 * derive the layer keys from the user key
+	 *
+	 * @param KEY user encryption key
+	 * @param bufferSize buffer size of the cipher streams
+	 * @param prefetch true to make the RandomCipher keystream ahead on another thread
+	 * @throws IOException on error creating the cipher streams
+	 */
+	CipherCascade(final EncryptionKey KEY, final int bufferSize, final boolean prefetch) throws IOException {
+		this.prefetch = prefetch;
+		aesKey = new EncryptionKey(KEY);
+		aesCipher = new CipherStream("AES/CFB/NoPadding", 16, aesKey, bufferSize);
+		blowfishKey = new EncryptionKey(aesKey);
+		blowfishCipher = new CipherStream("Blowfish/CFB/NoPadding", 8, blowfishKey, bufferSize);
+		randomKey = new EncryptionKey(blowfishKey);
+	}
+
+
+	/**
+	 * number of bytes the single stream format adds to the plain text: the RandomCipher
+	 * nonce and the initialization vectors of every Blowfish and AES round. The cipher
+	 * layers don't pad, so this is the exact difference in size.
+	 *
+	 * @return bytes added by encryption
+	 */
+	long overhead() {
+		return RandomCipherInputStream.nonceSize(randomKey.getBytes())
+				+ blowfishCipher.headerSize() + aesCipher.headerSize();
+	}
+
+
+	/**
+	 * encrypt a stream
+	 *
+	 * inputstream -> aesCipher -> blowfishCipher -> randomCipher -> xorOutputStream
+	 *
+	 * @param in plain text
+	 * @param out encrypted text
+	 * @throws IOException on error
+	 */
+	void encrypt(final InputStream in, final OutputStream out) throws IOException {
+		encrypt(in, out, prefetch);
+	}
+
+
+	/**
+	 * encrypt a stream, choosing whether to prefetch the keystream
+	 *
+	 * @param in plain text
+	 * @param out encrypted text
+	 * @param prefetch true to make the RandomCipher keystream on another thread
+	 * @throws IOException on error
+	 */
+	void encrypt(final InputStream in, final OutputStream out, final boolean prefetch) throws IOException {
+
+		// closed even when a layer fails, which stops the prefetch thread
+		try (final RandomCipherOutputStream xorOutputStream =
+				new RandomCipherOutputStream(EngineMetrics.timed(Stage.IO, out), randomKey, prefetch)) {
+
+			final OutputStream bf =
+					blowfishCipher.getCipherOutputStream(EngineMetrics.timed(Stage.RANDOM_CIPHER, xorOutputStream));
+
+			EngineMetrics.enter(Stage.AES);
+			try {
+				aesCipher.encrypt(EngineMetrics.timed(Stage.IO, in), EngineMetrics.timed(Stage.BLOWFISH, bf));
+			} finally {
+				EngineMetrics.exit();
+			}
+
+			bf.close();
+		}
+	}
+
+
+	/**
+	 * decrypt a stream
+	 *
+	 * @param in encrypted text
+	 * @param out plain text
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	void decrypt(final InputStream in, final OutputStream out)
+			throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+		decrypt(in, out, prefetch);
+	}
+
+
+	/**
+	 * decrypt a stream, choosing whether to prefetch the keystream
+	 *
+	 * @param in encrypted text
+	 * @param out plain text
+	 * @param prefetch true to make the RandomCipher keystream on another thread
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	void decrypt(final InputStream in, final OutputStream out, final boolean prefetch)
+			throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		// closed even when a layer fails, which stops the prefetch thread
+		try (final RandomCipherInputStream xorInputStream =
+				new RandomCipherInputStream(EngineMetrics.timed(Stage.IO, in), randomKey, prefetch)) {
+
+			final InputStream bf =
+					blowfishCipher.getCipherInputStream(EngineMetrics.timed(Stage.RANDOM_CIPHER, xorInputStream));
+
+			EngineMetrics.enter(Stage.AES);
+			try {
+				aesCipher.decrypt(EngineMetrics.timed(Stage.BLOWFISH, bf), EngineMetrics.timed(Stage.IO, out));
+			} finally {
+				EngineMetrics.exit();
+			}
+
+			bf.close();
+		}
+	}
+
+
+	/**
+	 * ByteBuffer form of the encrypting cascade, producing the same bytes as encrypt()
+	 *
+	 * @return encryptor
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws NoSuchPaddingException
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeyException
+	 */
+	BufferCipher encryptor() throws InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		return new BufferChain(EngineMetrics.timed(Stage.AES, aesCipher.getBufferEncryptor()),
+				EngineMetrics.timed(Stage.BLOWFISH, blowfishCipher.getBufferEncryptor()),
+				EngineMetrics.timed(Stage.RANDOM_CIPHER, new RandomCipher(randomKey.getBytes(), Cipher.ENCRYPT_MODE, prefetch)));
+	}
+
+
+	/**
+	 * ByteBuffer form of the decrypting cascade, reading the same bytes as decrypt()
+	 *
+	 * @return decryptor
+	 */
+	BufferCipher decryptor() {
+
+		return new BufferChain(
+				EngineMetrics.timed(Stage.RANDOM_CIPHER, new RandomCipher(randomKey.getBytes(), Cipher.DECRYPT_MODE, prefetch)),
+				EngineMetrics.timed(Stage.BLOWFISH, blowfishCipher.getBufferDecryptor()),
+				EngineMetrics.timed(Stage.AES, aesCipher.getBufferDecryptor()));
+	}
+
+
+	/**
+	 * run a channel through a BufferCipher into another channel. The data stays in
+	 * direct buffers from the read to the write.
+	 *
+	 * @param transform encryptor or decryptor
+	 * @param head bytes already read from the input, processed first
+	 * @param in input channel
+	 * @param out output channel
+	 * @throws IOException on error
+	 */
+	static void transfer(final BufferCipher transform, final ByteBuffer head,
+			final ReadableByteChannel in, final WritableByteChannel out) throws IOException {
+
+		// the transform is closed however the transfer ends, stopping its prefetch thread
+		try {
+			final ByteBuffer input = ByteBuffer.allocateDirect(CHANNEL_BUFFER);
+			final ByteBuffer output = ByteBuffer.allocateDirect(transform.getOutputSize(CHANNEL_BUFFER));
+
+			input.put(head);
+
+			boolean end = false;
+			while (!end) {
+				EngineMetrics.enter(Stage.IO);
+				try {
+					end = in.read(input) < 0;
+				} finally {
+					EngineMetrics.exit();
+				}
+				input.flip();
+
+				output.clear();
+				if (end) {
+					transform.doFinal(input, output);
+				} else {
+					transform.update(input, output);
+				}
+				input.clear();
+
+				output.flip();
+				EngineMetrics.enter(Stage.IO);
+				try {
+					while (output.hasRemaining()) {
+						out.write(output);
+					}
+				} finally {
+					EngineMetrics.exit();
+				}
+			}
+		} finally {
+			transform.close();
+		}
+	}
+}
@@ -1,13 +1,38 @@
 package RedBox;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
 import prng.DigestRandom;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 
 public class EncryptionKey {
 
-	private byte[] key = null;
+	/*
+	 * key as given, kept until it is stretched
+	 */
+	private final byte[] input;
+	
+	/*
+	 * how the key is stretched. null for the original stretchKey.
+	 */
+	private final KeyDerivation derivation;
+	
+	/*
+	 * keep the stretched key, and the keys derived from it, in the session cache
+	 */
+	private final boolean cached;
+	
+	private volatile byte[] key = null;
 	
 	/*
 	 * depending on the Java deliverable this could be larger, but for most 
@@ -32,6 +57,28 @@ public class EncryptionKey {
 	 */
 	private final int MAX_KEY = 1024*16;
 
+	/*
+	 * most keys held in the cache. The least recently used is dropped when it is full.
+	 */
+	private static final int CACHE_SIZE = 256;
+
+	/*
+	 * stretched keys already computed in this session, keyed by a digest of the
+	 * input key. Stretching is deliberately slow, and the same key is stretched
+	 * for every file and again for each layer key derived from it. The map holds
+	 * a task for each key, so the lock is only held to find or add the task and
+	 * the stretch itself runs outside it.
+	 */
+	private static final Map<ByteBuffer, FutureTask<byte[]>> stretched = Collections.synchronizedMap(
+			new LinkedHashMap<ByteBuffer, FutureTask<byte[]>>(16, 0.75f, true) {
+
+				private static final long serialVersionUID = 1L;
+
+				protected boolean removeEldestEntry(final Map.Entry<ByteBuffer, FutureTask<byte[]>> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+
 
 	/**
 	 * constructor using a UTF-8 encoded string
@@ -48,15 +95,56 @@ public class EncryptionKey {
 	 * @param ekey byte[] with key
 	 */
 	public EncryptionKey(final byte[] ekey) {
-		this.key = stretchKey(ekey);
+		this(ekey, null);
 	}
 	
 	/**
-	 * copy constructor
+	 * constructor using an array of bytes and a key derivation. The key is 
+	 * stretched when it is first used.
+	 * 
+	 * @param ekey byte[] with key
+	 * @param derivation how to stretch the key, or null for stretchKey
+	 */
+	public EncryptionKey(final byte[] ekey, final KeyDerivation derivation) {
+		this(ekey, derivation, true);
+	}
+	
+	/**
+	 * constructor using an array of bytes and a key derivation, optionally kept
+	 * out of the cache. A key used once, such as the calibration key, would
+	 * otherwise take the place of a key the session uses again.
+	 * 
+	 * @param ekey byte[] with key
+	 * @param derivation how to stretch the key, or null for stretchKey
+	 * @param cached keep this key and the keys derived from it in the cache
+	 */
+	EncryptionKey(final byte[] ekey, final KeyDerivation derivation, final boolean cached) {
+		this.input = ekey.clone();
+		this.derivation = derivation;
+		this.cached = cached;
+	}
+	
+	/**
+	 * copy constructor. The new key is derived from the stretched key, with the 
+	 * same key derivation.
 	 * @param ekey get key
 	 */
 	public EncryptionKey(EncryptionKey ekey) {
-		this(ekey.key);
+		this.input = ekey.key();
+		this.derivation = ekey.derivation;
+		this.cached = ekey.cached;
+		this.key = cached ? cachedStretchKey(input) : stretch(input);
+	}
+	
+	/**
+	 * the same key input, stretched with another key derivation. Used when the
+	 * derivation is recorded in an encrypted file.
+	 * 
+	 * @param derivation how to stretch the key, or null for stretchKey
+	 * @return new key
+	 */
+	public EncryptionKey withDerivation(final KeyDerivation derivation) {
+		return new EncryptionKey(input, derivation, cached);
 	}
 
 	/**
@@ -66,6 +154,7 @@ public class EncryptionKey {
 	 * @return a secure key derived from the input key.
 	 */
 	public byte[] getBytes() {
+		final byte[] key = key();
 		return Arrays.copyOf(key, key.length);
 	}
 	
@@ -74,9 +163,134 @@ public class EncryptionKey {
 	 * @return length of key, in bytes
 	 */
 	public int size() {
-		return key.length;
+		return key().length;
+	}
+	
+	/**
+	 * the stretched key, stretching it on first use
+	 * 
+	 * @return stretched key, which must not be modified
+	 */
+	private byte[] key() {
+		if (key == null) {
+			key = cached ? cachedStretchKey(input) : stretch(input);
+		}
+		return key;
 	}
 	
+	/**
+	 * stretch a key, or return the result of stretching the same key earlier in
+	 * this session. Threads asking for the same key wait for one stretch.
+	 * 
+	 * @param ekey key to stretch
+	 * @return stretched key, which must not be modified
+	 */
+	private byte[] cachedStretchKey(final byte[] ekey) {
+
+		final ByteBuffer id;
+		try {
+			final MessageDigest md = MessageDigest.getInstance("SHA-512");
+			md.update(ekey);
+			if (derivation != null) {
+				md.update(derivation.parameters());
+			}
+			id = ByteBuffer.wrap(md.digest());
+		} catch (NoSuchAlgorithmException e) {
+			return stretch(ekey);
+		}
+
+		final FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+			public byte[] call() {
+				return stretch(ekey);
+			}
+		});
+
+		final FutureTask<byte[]> cached = stretched.putIfAbsent(id, task);
+		if (cached == null) {
+			task.run();
+		}
+
+		final FutureTask<byte[]> used = cached == null ? task : cached;
+		try {
+			return await(used);
+		} catch (ExecutionException e) {
+			// a failed stretch isn't kept, so the next use tries again
+			stretched.remove(id, used);
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	
+	/**
+	 * wait for a stretch running on another thread. An interrupt doesn't stop the
+	 * wait, as the key is needed, but is passed on.
+	 * 
+	 * @param task stretch
+	 * @return stretched key
+	 * @throws ExecutionException if the stretch failed
+	 */
+	private static byte[] await(final FutureTask<byte[]> task) throws ExecutionException {
+		
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	
+	/**
+	 * stretch a key with the key derivation
+	 * 
+	 * @param ekey key to stretch
+	 * @return stretched key
+	 */
+	private byte[] stretch(final byte[] ekey) {
+		final EngineEvents.KeyDerivationEvent event = new EngineEvents.KeyDerivationEvent();
+		event.begin();
+		EngineMetrics.enter(EngineMetrics.Stage.KEY_STRETCH);
+		byte[] result = null;
+
+		try {
+			result = derivation == null ? stretchKey(ekey) : derivation.stretch(ekey, keyLength(ekey));
+			return result;
+		} finally {
+			EngineMetrics.exit();
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.derivation = derivation == null ? "stretchKey" : derivation.getClass().getSimpleName();
+				event.keyLength = ekey.length;
+				event.stretchedLength = result == null ? 0 : result.length;
+				event.commit();
+			}
+		}
+	}
+	
+	
+	/**
+	 * remove all stretched keys from the cache, for example when a session ends.
+	 */
+	public static void clearCache() {
+		stretched.clear();
+	}
+	
+	
 	/**
 	 * adjust the key to pad it to some multiple of KEYLEN. In the process it
 	 * mixes up the original key so it makes it less prone to dictionary attack
@@ -90,13 +304,7 @@ public class EncryptionKey {
 	 */
 	public final byte[] stretchKey(final byte[] ekey) {
 	
-		/*
-		 * determine key length. must be a multiple of KEYLEN
-		 *
-		 * */
-		final int newlen = Math.min(
-				ekey.length + (ekey.length % KEYLEN) + LENMULTIPLIER*KEYLEN,
-				MAX_KEY);
+		final int newlen = keyLength(ekey);
 		
 		final byte[] newkey = new byte[newlen];
 		final DigestRandom digest = new DigestRandom();
@@ -118,6 +326,18 @@ public class EncryptionKey {
 		return newkey;
 	}
 	
+	/**
+	 * determine stretched key length. must be a multiple of KEYLEN
+	 * 
+	 * @param ekey key to stretch
+	 * @return length of the stretched key
+	 */
+	private int keyLength(final byte[] ekey) {
+		return Math.min(
+				ekey.length + (ekey.length % KEYLEN) + LENMULTIPLIER*KEYLEN,
+				MAX_KEY);
+	}
+	
 	/**
 	 * return part of key by segment
 	 * 
@@ -126,7 +346,7 @@ public class EncryptionKey {
 	 * @return subset of key
 	 */
 	public byte[] keySegment(final int i, final int len) {
-		 return Arrays.copyOfRange(key, i, i + len);
+		 return Arrays.copyOfRange(key(), i, i + len);
 	}
 	
 	/**
@@ -135,6 +355,6 @@ public class EncryptionKey {
 	 */
 	public int hashCode() {
 		
-		return Arrays.hashCode(key);
+		return Arrays.hashCode(key());
 	}
 }
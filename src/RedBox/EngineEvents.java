@@ -0,0 +1,133 @@
+package RedBox;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Flight Recorder events of the engine. A file event covers one call of RedBoxEngine.go
+ * for a file, and the key derivation, cipher setup and streaming events of that file are
+ * on the same thread inside it. The fields are only filled in when the event will be
+ * recorded, so with recording off an event costs a check of whether it is enabled.
+ *
+ * @author mclark
+ *
+ */
+final class EngineEvents {
+
+	private EngineEvents() {
+	}
+
+
+	@Name("RedBox.File")
+	@Label("File")
+	@Category("RedBox")
+	@Description("one file encrypted or decrypted, from key derivation to the last write")
+	static final class FileEvent extends Event {
+
+		@Label("Source")
+		String source;
+
+		@Label("Target")
+		String target;
+
+		@Label("Command")
+		String command;
+
+		@Label("Format")
+		String format;
+
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+
+		@Label("Succeeded")
+		boolean succeeded;
+	}
+
+
+	@Name("RedBox.KeyDerivation")
+	@Label("Key Derivation")
+	@Category("RedBox")
+	@Description("a key stretched, when it wasn't already in the cache")
+	static final class KeyDerivationEvent extends Event {
+
+		@Label("Derivation")
+		String derivation;
+
+		@Label("Key Length")
+		@DataAmount
+		int keyLength;
+
+		@Label("Stretched Length")
+		@DataAmount
+		int stretchedLength;
+	}
+
+
+	@Name("RedBox.CipherSetup")
+	@Label("Cipher Setup")
+	@Category("RedBox")
+	@Description("the layer keys derived and the cipher cascade made")
+	static final class CipherSetupEvent extends Event {
+
+		@Label("Recorded Derivation")
+		@Description("the key derivation is recorded in the file")
+		boolean recorded;
+
+		@Label("Buffer Size")
+		@DataAmount
+		int bufferSize;
+
+		@Label("Prefetch")
+		boolean prefetch;
+	}
+
+
+	@Name("RedBox.Streaming")
+	@Label("Streaming")
+	@Category("RedBox")
+	@Description("the data of a file run through the cascade")
+	static final class StreamingEvent extends Event {
+
+		@Label("Source")
+		String source;
+
+		@Label("Execution")
+		String execution;
+
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+	}
+
+
+	@Name("RedBox.FileDelete")
+	@Label("File Delete")
+	@Category("RedBox")
+	@Description("an original deleted after it was encrypted or decrypted")
+	static final class FileDeleteEvent extends Event {
+
+		@Label("Path")
+		String path;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		@Label("Deleted")
+		boolean deleted;
+	}
+}
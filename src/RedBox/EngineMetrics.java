@@ -0,0 +1,600 @@
+package RedBox;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import cipher.BufferCipher;
+
+
+/**
+ * counters of the engine, registered with the platform MBean server as RedBox:type=Engine
+ * when first used. Every counter is a LongAdder, so threads working on different files
+ * don't contend for it.
+ *
+ * A job is one call of RedBoxEngine.go: it counts the bytes it reads and writes, and its
+ * wall time goes into the latency histogram when it ends. Stage times are kept by a clock
+ * of each thread. A stage entered inside another is taken out of the outer stage's time,
+ * so the stages add up to the time spent in them. The RandomCipher keystream made ahead on
+ * another thread isn't counted, nor are the reads and writes of AsyncFileEngine, and in the
+ * pipelined execution a layer's wall time includes waiting for the layers next to it.
+ *
+ * @author mclark
+ *
+ */
+public final class EngineMetrics implements EngineMetricsMBean {
+
+	/**
+	 * the parts of the work on a file
+	 */
+	enum Stage {
+		KEY_STRETCH, CIPHER_SETUP, AES, BLOWFISH, RANDOM_CIPHER, IO
+	}
+
+	/*
+	 * name of the MBean
+	 */
+	static final String NAME = "RedBox:type=Engine";
+
+	/*
+	 * latency buckets. Bucket i counts jobs that took less than 2^i ms, the last one all
+	 * the others.
+	 */
+	private static final int BUCKETS = 21;
+
+	/*
+	 * deepest nesting of stages timed on a thread
+	 */
+	private static final int MAX_DEPTH = 16;
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private static final boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+
+	private static final EngineMetrics METRICS = register(new EngineMetrics());
+
+	private static final ThreadLocal<Clock> clocks =
+			new ThreadLocal<Clock>() {
+				protected Clock initialValue() {
+					return new Clock();
+				}
+			};
+
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder active = new LongAdder();
+	private final LongAdder[] wall = adders(Stage.values().length);
+	private final LongAdder[] cpu = adders(Stage.values().length);
+	private final LongAdder[] latency = adders(BUCKETS);
+
+
+	private EngineMetrics() {
+	}
+
+
+	/**
+	 * @return the counters of the process
+	 */
+	public static EngineMetrics get() {
+		return METRICS;
+	}
+
+
+	/**
+	 * register the counters. If they can't be registered, for example because another
+	 * copy of the classes has, they are still counted.
+	 *
+	 * @param metrics counters
+	 * @return the counters
+	 */
+	private static EngineMetrics register(final EngineMetrics metrics) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(NAME));
+		} catch (JMException e) {
+			// counted but not visible
+		}
+		return metrics;
+	}
+
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+
+	public long getFilesCompleted() {
+		return completed.sum();
+	}
+
+
+	public long getFilesFailed() {
+		return failed.sum();
+	}
+
+
+	public long getActiveJobs() {
+		return active.sum();
+	}
+
+
+	public String[] getStageNames() {
+		final Stage[] stages = Stage.values();
+		final String[] names = new String[stages.length];
+		for (int i = 0; i < stages.length; i++) {
+			names[i] = stages[i].name();
+		}
+		return names;
+	}
+
+
+	public long[] getStageWallNanos() {
+		return sums(wall);
+	}
+
+
+	public long[] getStageCpuNanos() {
+		return sums(cpu);
+	}
+
+
+	public long[] getLatencyLimitsMillis() {
+		final long[] limits = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS - 1; i++) {
+			limits[i] = 1L << i;
+		}
+		limits[BUCKETS - 1] = Long.MAX_VALUE;
+		return limits;
+	}
+
+
+	public long[] getLatencyHistogram() {
+		return sums(latency);
+	}
+
+
+	public void reset() {
+		bytesIn.reset();
+		bytesOut.reset();
+		completed.reset();
+		failed.reset();
+		for (LongAdder adder : wall) {
+			adder.reset();
+		}
+		for (LongAdder adder : cpu) {
+			adder.reset();
+		}
+		for (LongAdder adder : latency) {
+			adder.reset();
+		}
+	}
+
+
+	/**
+	 * start a job
+	 *
+	 * @return the job, which must be ended
+	 */
+	static Job start() {
+		METRICS.active.increment();
+		return new Job();
+	}
+
+
+	/**
+	 * start timing a stage on this thread. Every enter must be followed by an exit.
+	 *
+	 * @param stage stage
+	 */
+	static void enter(final Stage stage) {
+		clocks.get().enter(stage);
+	}
+
+
+	/**
+	 * stop timing the stage entered last on this thread
+	 */
+	static void exit() {
+		clocks.get().exit();
+	}
+
+
+	/**
+	 * time the reads of a stream as a stage
+	 *
+	 * @param stage stage
+	 * @param stream input
+	 * @return timed stream
+	 */
+	static InputStream timed(final Stage stage, final InputStream stream) {
+
+		return new FilterInputStream(stream) {
+
+			public int read() throws IOException {
+				enter(stage);
+				try {
+					return stream.read();
+				} finally {
+					exit();
+				}
+			}
+
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				enter(stage);
+				try {
+					return stream.read(b, off, len);
+				} finally {
+					exit();
+				}
+			}
+
+			public long skip(final long n) throws IOException {
+				enter(stage);
+				try {
+					return stream.skip(n);
+				} finally {
+					exit();
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * time the writes of a stream as a stage
+	 *
+	 * @param stage stage
+	 * @param stream output
+	 * @return timed stream
+	 */
+	static OutputStream timed(final Stage stage, final OutputStream stream) {
+
+		return new FilterOutputStream(stream) {
+
+			public void write(final int b) throws IOException {
+				enter(stage);
+				try {
+					stream.write(b);
+				} finally {
+					exit();
+				}
+			}
+
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				enter(stage);
+				try {
+					stream.write(b, off, len);
+				} finally {
+					exit();
+				}
+			}
+
+			public void flush() throws IOException {
+				enter(stage);
+				try {
+					stream.flush();
+				} finally {
+					exit();
+				}
+			}
+
+			// closing writes the last bytes of a cipher layer
+			public void close() throws IOException {
+				enter(stage);
+				try {
+					stream.close();
+				} finally {
+					exit();
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * time a BufferCipher as a stage
+	 *
+	 * @param stage stage
+	 * @param transform transform
+	 * @return timed transform
+	 */
+	static BufferCipher timed(final Stage stage, final BufferCipher transform) {
+
+		return new BufferCipher() {
+
+			public void update(final ByteBuffer in, final ByteBuffer out) {
+				enter(stage);
+				try {
+					transform.update(in, out);
+				} finally {
+					exit();
+				}
+			}
+
+			public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+				enter(stage);
+				try {
+					transform.doFinal(in, out);
+				} finally {
+					exit();
+				}
+			}
+
+			public int getOutputSize(final int inputLen) {
+				return transform.getOutputSize(inputLen);
+			}
+
+			public void close() {
+				transform.close();
+			}
+		};
+	}
+
+
+	/**
+	 * @param n number of adders
+	 * @return new adders
+	 */
+	private static LongAdder[] adders(final int n) {
+		final LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+
+	/**
+	 * @param adders adders
+	 * @return the sum of each
+	 */
+	private static long[] sums(final LongAdder[] adders) {
+		final long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+
+
+	/**
+	 * @return processor time of this thread, or 0 if it can't be measured
+	 */
+	private static long cpuNanos() {
+		return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+
+	/**
+	 * one call of the engine. A job is used by the threads of one call, and its byte
+	 * counts are added to the totals when it ends.
+	 */
+	static final class Job {
+
+		private final long start = System.nanoTime();
+		private long read = 0;
+		private long written = 0;
+		private boolean ended = false;
+
+		/**
+		 * @param n bytes read
+		 */
+		void read(final long n) {
+			read += n;
+		}
+
+		/**
+		 * @param n bytes written
+		 */
+		void wrote(final long n) {
+			written += n;
+		}
+
+		/**
+		 * count the bytes read from a channel
+		 *
+		 * @param channel input
+		 * @return counted input
+		 */
+		ReadableByteChannel input(final ReadableByteChannel channel) {
+
+			return new ReadableByteChannel() {
+
+				public int read(final ByteBuffer dst) throws IOException {
+					final int n = channel.read(dst);
+					if (n > 0) {
+						read += n;
+					}
+					return n;
+				}
+
+				public boolean isOpen() {
+					return channel.isOpen();
+				}
+
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+
+		/**
+		 * count the bytes written to a channel
+		 *
+		 * @param channel output
+		 * @return counted output
+		 */
+		WritableByteChannel output(final WritableByteChannel channel) {
+
+			return new WritableByteChannel() {
+
+				public int write(final ByteBuffer src) throws IOException {
+					final int n = channel.write(src);
+					written += n;
+					return n;
+				}
+
+				public boolean isOpen() {
+					return channel.isOpen();
+				}
+
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+
+		/**
+		 * count the bytes read from a stream
+		 *
+		 * @param stream input
+		 * @return counted input
+		 */
+		InputStream input(final InputStream stream) {
+
+			return new FilterInputStream(stream) {
+
+				public int read() throws IOException {
+					final int b = stream.read();
+					if (b >= 0) {
+						read++;
+					}
+					return b;
+				}
+
+				public int read(final byte[] b, final int off, final int len) throws IOException {
+					final int n = stream.read(b, off, len);
+					if (n > 0) {
+						read += n;
+					}
+					return n;
+				}
+
+				public long skip(final long n) throws IOException {
+					final long skipped = stream.skip(n);
+					read += skipped;
+					return skipped;
+				}
+			};
+		}
+
+		/**
+		 * count the bytes written to a stream
+		 *
+		 * @param stream output
+		 * @return counted output
+		 */
+		OutputStream output(final OutputStream stream) {
+
+			return new FilterOutputStream(stream) {
+
+				public void write(final int b) throws IOException {
+					stream.write(b);
+					written++;
+				}
+
+				public void write(final byte[] b, final int off, final int len) throws IOException {
+					stream.write(b, off, len);
+					written += len;
+				}
+
+				public void flush() throws IOException {
+					stream.flush();
+				}
+
+				public void close() throws IOException {
+					stream.close();
+				}
+			};
+		}
+
+		/**
+		 * add the job to the totals. Only the first call counts.
+		 *
+		 * @param success true if the job finished without an error
+		 */
+		void end(final boolean success) {
+
+			if (ended) {
+				return;
+			}
+			ended = true;
+
+			final long millis = (System.nanoTime() - start) / 1000000;
+			final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+
+			METRICS.latency[bucket].increment();
+			METRICS.bytesIn.add(read);
+			METRICS.bytesOut.add(written);
+			(success ? METRICS.completed : METRICS.failed).increment();
+			METRICS.active.decrement();
+		}
+	}
+
+
+	/**
+	 * the stages being timed on one thread, innermost last
+	 */
+	private static final class Clock {
+
+		private final Stage[] stages = new Stage[MAX_DEPTH];
+		private final long[] wallStart = new long[MAX_DEPTH];
+		private final long[] cpuStart = new long[MAX_DEPTH];
+
+		/*
+		 * time of the stages entered inside each one
+		 */
+		private final long[] innerWall = new long[MAX_DEPTH];
+		private final long[] innerCpu = new long[MAX_DEPTH];
+
+		private int depth = 0;
+
+		void enter(final Stage stage) {
+
+			if (depth < MAX_DEPTH) {
+				stages[depth] = stage;
+				innerWall[depth] = 0;
+				innerCpu[depth] = 0;
+				cpuStart[depth] = cpuNanos();
+				wallStart[depth] = System.nanoTime();
+			}
+			depth++;
+		}
+
+		void exit() {
+
+			depth--;
+			if (depth >= MAX_DEPTH) {
+				return;
+			}
+
+			final long wallTime = System.nanoTime() - wallStart[depth];
+			final long cpuTime = cpuNanos() - cpuStart[depth];
+			final int stage = stages[depth].ordinal();
+
+			METRICS.wall[stage].add(wallTime - innerWall[depth]);
+			METRICS.cpu[stage].add(cpuTime - innerCpu[depth]);
+
+			if (depth > 0) {
+				innerWall[depth - 1] += wallTime;
+				innerCpu[depth - 1] += cpuTime;
+			}
+		}
+	}
+}
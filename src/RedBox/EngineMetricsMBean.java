@@ -0,0 +1,67 @@
+package RedBox;
+
+
+/**
+ * management interface of the engine counters, registered as RedBox:type=Engine. Stage
+ * times are in the order of getStageNames(), in nanoseconds.
+ *
+ * @author mclark
+ *
+ */
+public interface EngineMetricsMBean {
+
+	/**
+	 * @return bytes read by the engine since the counters were reset
+	 */
+	long getBytesIn();
+
+	/**
+	 * @return bytes written by the engine
+	 */
+	long getBytesOut();
+
+	/**
+	 * @return files and streams finished without an error
+	 */
+	long getFilesCompleted();
+
+	/**
+	 * @return files and streams that ended with an error
+	 */
+	long getFilesFailed();
+
+	/**
+	 * @return files and streams being processed now
+	 */
+	long getActiveJobs();
+
+	/**
+	 * @return names of the stages
+	 */
+	String[] getStageNames();
+
+	/**
+	 * @return wall time of each stage, not counting the stages it calls
+	 */
+	long[] getStageWallNanos();
+
+	/**
+	 * @return processor time of each stage's thread, not counting the stages it calls
+	 */
+	long[] getStageCpuNanos();
+
+	/**
+	 * @return upper limit of each latency bucket in milliseconds, the last unbounded
+	 */
+	long[] getLatencyLimitsMillis();
+
+	/**
+	 * @return files and streams finished in each latency bucket
+	 */
+	long[] getLatencyHistogram();
+
+	/**
+	 * set every counter to zero, except the active jobs
+	 */
+	void reset();
+}
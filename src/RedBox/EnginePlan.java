@@ -0,0 +1,443 @@
+package RedBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import cipher.CipherStream;
+
+
+/**
+ * the buffer size, chunk size, thread count, execution and keystream prefetch the
+ * engine uses on this machine. The first time it is needed a short calibration
+ * times the cascade with a few settings, and the result is kept in a profile file
+ * for the host in ~/.redbox, so later runs start with the settings straight away.
+ * The profile is calibrated again when the number of processors changes, or when
+ * it can't be read. Asynchronous file execution depends on the storage of each
+ * file rather than the host, so it is only used when asked for.
+ *
+ * @author mclark
+ *
+ */
+public final class EnginePlan {
+
+	/*
+	 * settings used when nothing has been calibrated: the original buffer size,
+	 * the default chunk size, every processor and serial execution.
+	 */
+	public static final EnginePlan DEFAULT = new EnginePlan(CipherStream.DEFAULT_BUFFER_SIZE,
+			ChunkedEngine.DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors(),
+			RedBoxEngine.execution.SERIAL);
+
+	/*
+	 * profile format, changed when the settings or the calibration change
+	 */
+	private static final String VERSION = "3";
+
+	/*
+	 * buffer sizes tried
+	 */
+	private static final int[] BUFFER_SIZES = { 1024*4, 1024*16, 1024*64 };
+
+	/*
+	 * bytes encrypted for each timing
+	 */
+	private static final int CALIBRATION_BYTES = 1024*1024*2;
+
+	/*
+	 * smallest chunk size chosen
+	 */
+	private static final int MIN_CHUNK_SIZE = 1024*1024;
+
+	/*
+	 * chunk size used to time the thread counts, and the chunks timed for each thread
+	 */
+	private static final int CALIBRATION_CHUNK_SIZE = 1024*256;
+	private static final int CALIBRATION_CHUNKS_PER_THREAD = 2;
+
+	/*
+	 * plan for this machine, once known
+	 */
+	private static volatile EnginePlan local = null;
+
+	/*
+	 * cipher stream buffer size
+	 */
+	public final int bufferSize;
+
+	/*
+	 * plain text bytes per chunk
+	 */
+	public final int chunkSize;
+
+	/*
+	 * chunks, or files, processed at once
+	 */
+	public final int threads;
+
+	/*
+	 * how single streams are run
+	 */
+	public final RedBoxEngine.execution execution;
+
+	/*
+	 * make the RandomCipher keystream ahead on another thread
+	 */
+	public final boolean prefetch;
+
+	/*
+	 * pool for chunks, created when first used
+	 */
+	private ForkJoinPool pool = null;
+
+
+	/**
+	 * create a plan
+	 *
+	 * @param bufferSize cipher stream buffer size
+	 * @param chunkSize plain text bytes per chunk
+	 * @param threads chunks, or files, processed at once
+	 * @param execution how single streams are run
+	 */
+	public EnginePlan(final int bufferSize, final int chunkSize, final int threads,
+			final RedBoxEngine.execution execution) {
+		this(bufferSize, chunkSize, threads, execution, false);
+	}
+
+
+	/**
+	 * create a plan
+	 *
+	 * @param bufferSize cipher stream buffer size
+	 * @param chunkSize plain text bytes per chunk
+	 * @param threads chunks, or files, processed at once
+	 * @param execution how single streams are run
+	 * @param prefetch make the RandomCipher keystream ahead on another thread
+	 */
+	public EnginePlan(final int bufferSize, final int chunkSize, final int threads,
+			final RedBoxEngine.execution execution, final boolean prefetch) {
+
+		if (bufferSize < 1 || chunkSize < 1 || threads < 1) {
+			throw new IllegalArgumentException("sizes and threads must be positive");
+		}
+
+		this.bufferSize = bufferSize;
+		this.chunkSize = chunkSize;
+		this.threads = threads;
+		this.execution = execution;
+		this.prefetch = prefetch;
+	}
+
+
+	/**
+	 * the plan for this machine, from the profile of this host or calibrated
+	 *
+	 * @return plan
+	 */
+	public static EnginePlan get() {
+
+		if (local == null) {
+			synchronized (EnginePlan.class) {
+				if (local == null) {
+					local = load();
+				}
+			}
+		}
+		return local;
+	}
+
+
+	/**
+	 * pool that processes chunks with this many threads. The default plan, and any
+	 * plan with the same parallelism, uses the common pool.
+	 *
+	 * @return pool
+	 */
+	synchronized ForkJoinPool pool() {
+
+		if (pool == null) {
+			pool = this == DEFAULT || threads == ForkJoinPool.getCommonPoolParallelism()
+					? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+
+	/**
+	 * read the profile of this host, or calibrate and save a new one
+	 *
+	 * @return plan
+	 */
+	private static EnginePlan load() {
+
+		final File file = profileFile();
+		final Properties profile = new Properties();
+
+		if (file.isFile()) {
+			try (final InputStream in = new FileInputStream(file)) {
+				profile.load(in);
+
+				if (VERSION.equals(profile.getProperty("version"))
+						&& Integer.parseInt(profile.getProperty("processors"))
+							== Runtime.getRuntime().availableProcessors()) {
+
+					return new EnginePlan(
+							Integer.parseInt(profile.getProperty("bufferSize")),
+							Integer.parseInt(profile.getProperty("chunkSize")),
+							Integer.parseInt(profile.getProperty("threads")),
+							RedBoxEngine.execution.valueOf(profile.getProperty("execution")),
+							Boolean.parseBoolean(profile.getProperty("prefetch")));
+				}
+			} catch (IOException | RuntimeException e) {
+				// damaged profile, calibrate again
+			}
+		}
+
+		/*
+		 * a plan that can't be saved would be calibrated again on every run, which
+		 * costs more than the settings save
+		 */
+		final File dir = file.getParentFile();
+		if ((!dir.isDirectory() && !dir.mkdirs()) || !dir.canWrite()) {
+			System.err.println("cannot write " + dir + ", using the default settings");
+			return DEFAULT;
+		}
+
+		final EnginePlan plan;
+		try {
+			System.err.println("calibrating for this machine");
+			plan = calibrate();
+		} catch (Exception e) {
+			System.err.println("calibration failed: " + e);
+			return DEFAULT;
+		}
+
+		profile.clear();
+		profile.setProperty("version", VERSION);
+		profile.setProperty("processors", Integer.toString(Runtime.getRuntime().availableProcessors()));
+		profile.setProperty("bufferSize", Integer.toString(plan.bufferSize));
+		profile.setProperty("chunkSize", Integer.toString(plan.chunkSize));
+		profile.setProperty("threads", Integer.toString(plan.threads));
+		profile.setProperty("execution", plan.execution.name());
+		profile.setProperty("prefetch", Boolean.toString(plan.prefetch));
+
+		try (final OutputStream out = new FileOutputStream(file)) {
+			profile.store(out, "RedBox engine profile");
+		} catch (IOException e) {
+			// the plan is still used for this session
+			System.err.println("cannot save " + file + ": " + e);
+		}
+
+		return plan;
+	}
+
+
+	/**
+	 * the profile file of this host
+	 *
+	 * @return profile file
+	 */
+	private static File profileFile() {
+
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = "localhost";
+		}
+
+		return new File(new File(System.getProperty("user.home"), ".redbox"),
+				"profile-" + host.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+	}
+
+
+	/**
+	 * time the cascade with each buffer size, with pipelined execution and with the
+	 * keystream prefetched, time the chunked format with a few thread counts, and
+	 * choose the chunk size from the memory available.
+	 *
+	 * @return calibrated plan
+	 * @throws Exception on error
+	 */
+	static EnginePlan calibrate() throws Exception {
+
+		/*
+		 * a key with the cheapest derivation; the calibration times the cascade,
+		 * not the key stretching. It is used only here, so it isn't cached.
+		 */
+		final EncryptionKey key = new EncryptionKey(new byte[16],
+				new LaneKeyDerivation(1, LaneKeyDerivation.MIN_COST), false);
+
+		final byte[] data = new byte[CALIBRATION_BYTES];
+		new Random().nextBytes(data);
+
+		// once to load and compile the code
+		time(key, data, BUFFER_SIZES[0], RedBoxEngine.execution.SERIAL, false);
+
+		int bufferSize = BUFFER_SIZES[0];
+		long best = Long.MAX_VALUE;
+		for (int size : BUFFER_SIZES) {
+			final long t = time(key, data, size, RedBoxEngine.execution.SERIAL, false);
+			if (t < best) {
+				best = t;
+				bufferSize = size;
+			}
+		}
+
+		RedBoxEngine.execution execution = RedBoxEngine.execution.SERIAL;
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if (processors > 1) {
+			final long t = time(key, data, bufferSize, RedBoxEngine.execution.PIPELINED, false);
+			// switch only for a clear gain
+			if (t < best * 9 / 10) {
+				best = t;
+				execution = RedBoxEngine.execution.PIPELINED;
+			}
+		}
+
+		/*
+		 * pipelined execution already runs the RandomCipher on a thread of its own;
+		 * otherwise the keystream can be made ahead while the other layers work.
+		 */
+		boolean prefetch = false;
+		if (processors > 1 && execution.equals(RedBoxEngine.execution.SERIAL)) {
+			final long t = time(key, data, bufferSize, RedBoxEngine.execution.SERIAL, true);
+			if (t < best * 9 / 10) {
+				best = t;
+				prefetch = true;
+			}
+		}
+
+		final int threads = threads(key, bufferSize, processors);
+
+		/*
+		 * about four chunks are held for each thread, input and output for two in
+		 * flight; keep that within a quarter of the heap.
+		 */
+		long chunk = Runtime.getRuntime().maxMemory() / 4 / (threads * 4L);
+		chunk = Math.max(MIN_CHUNK_SIZE, Math.min(ChunkedEngine.DEFAULT_CHUNK_SIZE, chunk));
+		final int chunkSize = Integer.highestOneBit((int) chunk);
+
+		return new EnginePlan(bufferSize, chunkSize, threads, execution, prefetch);
+	}
+
+
+	/**
+	 * time the chunked format with one thread, doubling up to every processor, and
+	 * choose the fewest threads without a clear loss. Hyper-threads and other work on
+	 * the machine can make the last processors add little.
+	 *
+	 * @param key encryption key
+	 * @param bufferSize cipher stream buffer size
+	 * @param processors processors available
+	 * @return threads for chunks and files
+	 * @throws Exception on error
+	 */
+	private static int threads(final EncryptionKey key, final int bufferSize, final int processors)
+			throws Exception {
+
+		if (processors == 1) {
+			return 1;
+		}
+
+		final byte[] data = new byte[CALIBRATION_CHUNK_SIZE * CALIBRATION_CHUNKS_PER_THREAD * processors];
+		new Random().nextBytes(data);
+
+		int threads = 1;
+		long best = Long.MAX_VALUE;
+		for (int n = 1; ; n = Math.min(n * 2, processors)) {
+			final long t = timeChunked(key, data, bufferSize, n);
+			if (t < best * 9 / 10) {
+				best = t;
+				threads = n;
+			}
+			if (n == processors) {
+				return threads;
+			}
+		}
+	}
+
+
+	/**
+	 * time encrypting the data
+	 *
+	 * @param key encryption key
+	 * @param data plain text
+	 * @param bufferSize cipher stream buffer size
+	 * @param execution serial or pipelined
+	 * @param prefetch make the keystream on another thread
+	 * @return nanoseconds taken
+	 * @throws Exception on error
+	 */
+	private static long time(final EncryptionKey key, final byte[] data, final int bufferSize,
+			final RedBoxEngine.execution execution, final boolean prefetch) throws Exception {
+
+		final CipherCascade cascade = new CipherCascade(key, bufferSize, prefetch);
+
+		final long start = System.nanoTime();
+
+		if (execution.equals(RedBoxEngine.execution.PIPELINED)) {
+			new PipelinedEngine().encrypt(cascade, new ByteArrayInputStream(data), discard());
+		} else {
+			cascade.encrypt(new ByteArrayInputStream(data), discard());
+		}
+
+		return System.nanoTime() - start;
+	}
+
+
+	/**
+	 * time encrypting the data in the chunked format
+	 *
+	 * @param key encryption key
+	 * @param data plain text
+	 * @param bufferSize cipher stream buffer size
+	 * @param threads chunks processed at once
+	 * @return nanoseconds taken
+	 * @throws Exception on error
+	 */
+	private static long timeChunked(final EncryptionKey key, final byte[] data, final int bufferSize,
+			final int threads) throws Exception {
+
+		final CipherCascade cascade = new CipherCascade(key, bufferSize, false);
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			final long start = System.nanoTime();
+			new ChunkedEngine(CALIBRATION_CHUNK_SIZE, pool).encrypt(cascade,
+					new ByteArrayInputStream(data), discard());
+			return System.nanoTime() - start;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+
+	/**
+	 * stream that drops what is written to it
+	 *
+	 * @return output stream
+	 */
+	private static OutputStream discard() {
+		return new OutputStream() {
+			public void write(final int b) {
+			}
+			public void write(final byte[] b, final int off, final int len) {
+			}
+		};
+	}
+
+
+	public String toString() {
+		return "buffer " + bufferSize + ", chunk " + chunkSize + ", threads " + threads
+				+ ", " + execution.name().toLowerCase() + (prefetch ? ", prefetch" : "");
+	}
+}
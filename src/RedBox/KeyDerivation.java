@@ -0,0 +1,30 @@
+package RedBox;
+
+
+/**
+ * a way of stretching a key. EncryptionKey uses its own stretchKey unless it is
+ * given another derivation.
+ *
+ * @author mclark
+ *
+ */
+public interface KeyDerivation {
+
+	/**
+	 * stretch a key. The result must depend only on the key, the length and the
+	 * parameters.
+	 *
+	 * @param key key to stretch
+	 * @param length length of the stretched key, in bytes
+	 * @return stretched key
+	 */
+	byte[] stretch(byte[] key, int length);
+
+	/**
+	 * bytes identifying the derivation and its settings. Keys stretched with
+	 * different parameters are cached separately.
+	 *
+	 * @return parameters
+	 */
+	byte[] parameters();
+}
@@ -0,0 +1,285 @@
+package RedBox;
+
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import prng.DigestRandom;
+
+
+/**
+ * key stretching in independent lanes run in parallel. Each lane is a chain of
+ * digest rounds over a fixed size block, started from the key and the lane number,
+ * and the lanes are combined at the end. The work done depends on the cost, not on
+ * the key length, and the cost can be calibrated to a wall time on this machine.
+ *
+ * The settings are written in a header at the start of the encrypted output:
+ *
+ *   MAGIC (8 bytes) | lanes (byte) | cost (int)
+ *
+ * so decryption repeats the same work without guessing.
+ *
+ * @author mclark
+ *
+ */
+public class LaneKeyDerivation implements KeyDerivation {
+
+	static final byte[] MAGIC = "RedBoxK1".getBytes(StandardCharsets.US_ASCII);
+
+	/*
+	 * length of the header
+	 */
+	static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+
+	/*
+	 * default number of lanes. Fixed rather than the number of processors, so a
+	 * file written on a large machine doesn't take much longer to open on a small one.
+	 */
+	public static final int DEFAULT_LANES = 4;
+
+	/*
+	 * largest number of lanes accepted from a header
+	 */
+	static final int MAX_LANES = 64;
+
+	/*
+	 * smallest and largest cost; rounds per lane. A calibrated cost is a fraction of
+	 * a second of rounds, far below the largest, which is there so a damaged or
+	 * hostile header can't make opening a file take hours.
+	 */
+	static final int MIN_COST = 1024;
+	static final int MAX_COST = 1 << 22;
+
+	/*
+	 * most rounds of all lanes together, so many lanes can't multiply the largest cost
+	 */
+	static final long MAX_WORK = (long) DEFAULT_LANES * MAX_COST;
+
+	/*
+	 * bytes in the block each lane digests
+	 */
+	private static final int BLOCK = 64;
+
+	private final int lanes;
+	private final int cost;
+
+
+	/**
+	 * create a derivation
+	 *
+	 * @param lanes number of lanes
+	 * @param cost rounds per lane
+	 */
+	public LaneKeyDerivation(final int lanes, final int cost) {
+
+		if (lanes < 1 || lanes > MAX_LANES) {
+			throw new IllegalArgumentException("lanes must be 1 to " + MAX_LANES);
+		}
+		if (cost < MIN_COST || cost > maxCost(lanes)) {
+			throw new IllegalArgumentException("cost must be " + MIN_COST + " to " + maxCost(lanes));
+		}
+
+		this.lanes = lanes;
+		this.cost = cost;
+	}
+
+
+	/**
+	 * choose the cost so one stretch takes about the given time on this machine,
+	 * assuming the lanes run in parallel.
+	 *
+	 * @param millis target time for one stretch, in milliseconds
+	 * @param lanes number of lanes
+	 * @return calibrated derivation
+	 */
+	public static LaneKeyDerivation calibrate(final long millis, final int lanes) {
+
+		final byte[] trial = new byte[BLOCK];
+		int rounds = MIN_COST;
+		long elapsed;
+
+		// time enough rounds to measure
+		while (true) {
+			final long start = System.nanoTime();
+			lane(trial, 0, lanes, rounds);
+			elapsed = System.nanoTime() - start;
+
+			if (elapsed >= 50000000L || rounds >= maxCost(lanes) / 2) {
+				break;
+			}
+			rounds *= 2;
+		}
+
+		final double cost = (double) rounds * millis * 1000000L / Math.max(1, elapsed);
+		return new LaneKeyDerivation(lanes, (int) Math.max(MIN_COST, Math.min(maxCost(lanes), cost)));
+	}
+
+
+	/**
+	 * largest cost for a number of lanes, the smaller of MAX_COST and the share of
+	 * MAX_WORK of each lane. Derivations above it are neither made nor read.
+	 *
+	 * @param lanes number of lanes
+	 * @return largest rounds per lane
+	 */
+	static int maxCost(final int lanes) {
+		return (int) Math.min(MAX_COST, MAX_WORK / lanes);
+	}
+
+
+	public byte[] stretch(final byte[] key, final int length) {
+
+		final List<Future<byte[]>> others = new ArrayList<>(lanes - 1);
+
+		for (int i = 1; i < lanes; i++) {
+			final int lane = i;
+			others.add(ForkJoinPool.commonPool().submit(new Callable<byte[]>() {
+				public byte[] call() {
+					return lane(key, lane, lanes, cost);
+				}
+			}));
+		}
+
+		final DigestRandom digest = new DigestRandom();
+		digest.setSeed(key);
+		digest.setSeed(lane(key, 0, lanes, cost));
+
+		try {
+			for (Future<byte[]> other : others) {
+				digest.setSeed(other.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			for (Future<byte[]> other : others) {
+				other.cancel(true);
+			}
+		}
+
+		final byte[] newkey = new byte[length];
+		digest.nextBytes(newkey);
+		return newkey;
+	}
+
+
+	public byte[] parameters() {
+		return header();
+	}
+
+
+	/**
+	 * header recording this derivation
+	 *
+	 * @return header bytes
+	 */
+	byte[] header() {
+		return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).put((byte) lanes).putInt(cost).array();
+	}
+
+
+	/**
+	 * read a header from the start of a buffer. If there is no header the buffer is
+	 * left as it was.
+	 *
+	 * @param head bytes from the start of the input
+	 * @return derivation from the header, with the header consumed, or null
+	 * @throws IOException if the header is damaged, or asks for more than the largest cost
+	 */
+	static LaneKeyDerivation read(final ByteBuffer head) throws IOException {
+
+		if (head.remaining() < HEADER_SIZE) {
+			return null;
+		}
+
+		final ByteBuffer magic = head.duplicate();
+		magic.limit(magic.position() + MAGIC.length);
+		if (!magic.equals(ByteBuffer.wrap(MAGIC))) {
+			return null;
+		}
+
+		head.position(head.position() + MAGIC.length);
+		final int lanes = head.get() & 0xFF;
+		final int cost = head.getInt();
+
+		if (lanes < 1 || lanes > MAX_LANES || cost < MIN_COST || cost > maxCost(lanes)) {
+			throw new IOException("damaged key derivation header");
+		}
+		return new LaneKeyDerivation(lanes, cost);
+	}
+
+
+	/**
+	 * read a header from the start of a stream. If there is no header the bytes read
+	 * are pushed back.
+	 *
+	 * @param in stream with room to push back HEADER_SIZE bytes
+	 * @return derivation from the header, with the header consumed, or null
+	 * @throws IOException on error
+	 */
+	static LaneKeyDerivation read(final PushbackInputStream in) throws IOException {
+
+		final byte[] head = new byte[HEADER_SIZE];
+		final int len = ChunkedEngine.readFully(in, head, head.length);
+
+		final LaneKeyDerivation derivation = read(ByteBuffer.wrap(head, 0, len));
+		if (derivation == null && len > 0) {
+			in.unread(head, 0, len);
+		}
+		return derivation;
+	}
+
+
+	/**
+	 * read a header from the start of a file
+	 *
+	 * @param channel open file
+	 * @return derivation from the header, or null
+	 * @throws IOException on error
+	 */
+	static LaneKeyDerivation read(final FileChannel channel) throws IOException {
+
+		final ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+		while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+			// read the header, if any
+		}
+		head.flip();
+		return read(head);
+	}
+
+
+	/**
+	 * run one lane
+	 *
+	 * @param key key to stretch
+	 * @param lane lane number
+	 * @param lanes number of lanes
+	 * @param cost rounds
+	 * @return lane result
+	 */
+	private static byte[] lane(final byte[] key, final int lane, final int lanes, final int cost) {
+
+		final DigestRandom digest = new DigestRandom();
+		digest.setSeed(key);
+		digest.setSeed(ByteBuffer.allocate(12).putInt(lane).putInt(lanes).putInt(cost).array());
+
+		final byte[] block = new byte[BLOCK];
+		for (int i = 0; i < cost; i++) {
+			digest.nextBytes(block);
+			digest.setSeed(block);
+		}
+
+		digest.nextBytes(block);
+		return block;
+	}
+}
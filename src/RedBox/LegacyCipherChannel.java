@@ -0,0 +1,317 @@
+package RedBox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import cipher.BufferChain;
+import cipher.BufferCipher;
+import prng.FusedMultiRandom;
+import random.RandomCipher;
+
+
+/**
+ * the plain text of a single stream file, read at any position with a LegacyIndex. A read
+ * continues from where the last one stopped when it can, otherwise the cascade is restored
+ * from the checkpoint before the position and the bytes between are decrypted and dropped.
+ *
+ * @author mclark
+ *
+ */
+final class LegacyCipherChannel implements SeekableByteChannel {
+
+	private final LegacyIndex.Stream stream;
+	private final FileChannel channel;
+	private final SeekableCipherChannel index;
+
+	/*
+	 * plain text bytes between checkpoints, room for the generator state, bytes per
+	 * checkpoint and the number of checkpoints
+	 */
+	private final int interval;
+	private final int slot;
+	private final int recordSize;
+	private final long checkpoints;
+
+	private long position = 0;
+
+	/*
+	 * cascade restored from a checkpoint, the next file byte for it and the
+	 * plain text position of the next decrypted byte
+	 */
+	private BufferCipher chain = null;
+	private long filePosition;
+	private long decrypted;
+	private boolean finished;
+
+	/*
+	 * encrypted bytes read, and plain text bytes not yet read by the caller
+	 */
+	private final ByteBuffer input = ByteBuffer.allocate(LegacyIndex.SLICE);
+	private ByteBuffer output = null;
+
+
+	/**
+	 * create a channel over a file and its index
+	 *
+	 * @param stream layout and cascade of the file
+	 * @param channel file, closed with this channel
+	 * @param index plain text of the index, closed with this channel
+	 * @throws IOException if the index is not for this file
+	 */
+	LegacyCipherChannel(final LegacyIndex.Stream stream, final FileChannel channel,
+			final SeekableCipherChannel index) throws IOException {
+
+		this.stream = stream;
+		this.channel = channel;
+		this.index = index;
+
+		final ByteBuffer header = read(0, LegacyIndex.HEADER_SIZE);
+		final byte[] magic = new byte[LegacyIndex.MAGIC.length];
+		header.get(magic);
+
+		if (!Arrays.equals(magic, LegacyIndex.MAGIC)) {
+			throw new IOException("not a seek index");
+		}
+		if (header.getLong() != channel.size()) {
+			throw new IOException("the index is for a different file");
+		}
+
+		interval = header.getInt();
+		slot = header.getInt();
+
+		if (interval <= 0 || slot <= 0) {
+			throw new IOException("damaged seek index");
+		}
+
+		recordSize = 4 + slot + stream.blowfishHeader + stream.aesHeader;
+		checkpoints = (index.size() - LegacyIndex.HEADER_SIZE) / recordSize;
+
+		if (checkpoints < 1 || (checkpoints - 1) * interval > stream.size) {
+			throw new IOException("damaged seek index");
+		}
+	}
+
+
+	public int read(final ByteBuffer dst) throws IOException {
+
+		checkOpen();
+
+		if (position >= stream.size) {
+			return -1;
+		}
+
+		seek(position);
+
+		int total = 0;
+
+		while (dst.hasRemaining() && position < stream.size) {
+
+			if (!output.hasRemaining() && !fill()) {
+				throw new IOException("truncated file");
+			}
+
+			final int n = (int) Math.min(Math.min(dst.remaining(), output.remaining()), stream.size - position);
+			final ByteBuffer part = output.duplicate();
+			part.limit(part.position() + n);
+			dst.put(part);
+
+			output.position(output.position() + n);
+			position += n;
+			decrypted += n;
+			total += n;
+		}
+
+		return total;
+	}
+
+
+	public int write(final ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+
+	public long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+
+	public SeekableByteChannel position(final long newPosition) throws IOException {
+
+		checkOpen();
+
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position");
+		}
+
+		position = newPosition;
+		return this;
+	}
+
+
+	public long size() throws IOException {
+		checkOpen();
+		return stream.size;
+	}
+
+
+	public SeekableByteChannel truncate(final long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+
+	public void close() throws IOException {
+		try {
+			index.close();
+		} finally {
+			channel.close();
+		}
+	}
+
+
+	/**
+	 * bring the cascade to a plain text position, restoring a checkpoint unless the
+	 * position is ahead of the cascade and no checkpoint is nearer
+	 *
+	 * @param target plain text position
+	 * @throws IOException on error
+	 */
+	private void seek(final long target) throws IOException {
+
+		final long checkpoint = Math.min(target / interval, checkpoints - 1);
+
+		if (chain == null || decrypted > target || checkpoint * interval > decrypted) {
+			restore(checkpoint);
+		}
+
+		while (decrypted < target) {
+
+			if (!output.hasRemaining() && !fill()) {
+				throw new IOException("truncated file");
+			}
+
+			final int n = (int) Math.min(output.remaining(), target - decrypted);
+			output.position(output.position() + n);
+			decrypted += n;
+		}
+	}
+
+
+	/**
+	 * restore the cascade from a checkpoint
+	 *
+	 * @param checkpoint checkpoint number
+	 * @throws IOException on error
+	 */
+	private void restore(final long checkpoint) throws IOException {
+
+		final ByteBuffer record = read(LegacyIndex.HEADER_SIZE + checkpoint * recordSize, recordSize);
+
+		final int length = record.getInt();
+		if (length < 0 || length > slot) {
+			throw new IOException("damaged seek index");
+		}
+
+		final byte[] state = new byte[length];
+		record.get(state);
+		record.position(record.position() + slot - length);
+
+		final ByteBuffer blowfish = record.duplicate();
+		blowfish.limit(blowfish.position() + stream.blowfishHeader);
+		record.position(blowfish.limit());
+
+		try {
+			chain = new BufferChain(new RandomCipher(FusedMultiRandom.restore(state)),
+					stream.cascade.blowfishCipher.getBufferDecryptor(
+							LegacyIndex.blocks(blowfish, stream.cascade.blowfishCipher.ivSize())),
+					stream.cascade.aesCipher.getBufferDecryptor(
+							LegacyIndex.blocks(record, stream.cascade.aesCipher.ivSize())));
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+
+		if (output == null) {
+			output = ByteBuffer.allocate(chain.getOutputSize(LegacyIndex.SLICE));
+		}
+		output.clear().flip();
+
+		decrypted = checkpoint * interval;
+		filePosition = stream.dataStart + decrypted;
+		finished = false;
+	}
+
+
+	/**
+	 * decrypt the next slice of the file
+	 *
+	 * @return false if the file has ended
+	 * @throws IOException on error
+	 */
+	private boolean fill() throws IOException {
+
+		if (finished) {
+			return false;
+		}
+
+		input.clear();
+		final int n = channel.read(input, filePosition);
+		input.flip();
+
+		output.clear();
+		if (n < 0 || filePosition + n >= channel.size()) {
+			chain.doFinal(input, output);
+			finished = true;
+		} else {
+			chain.update(input, output);
+		}
+		output.flip();
+
+		filePosition += Math.max(n, 0);
+		return output.hasRemaining() || !finished;
+	}
+
+
+	/**
+	 * read part of the plain text of the index
+	 *
+	 * @param at index position
+	 * @param len bytes to read
+	 * @return bytes, ready to be read
+	 * @throws IOException if the index ends first
+	 */
+	private ByteBuffer read(final long at, final int len) throws IOException {
+
+		final ByteBuffer bytes = ByteBuffer.allocate(len);
+		index.position(at);
+
+		while (bytes.hasRemaining()) {
+			if (index.read(bytes) < 0) {
+				throw new IOException("truncated seek index");
+			}
+		}
+
+		bytes.flip();
+		return bytes;
+	}
+
+
+	/**
+	 * @throws ClosedChannelException if the channel is closed
+	 */
+	private void checkOpen() throws ClosedChannelException {
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+}
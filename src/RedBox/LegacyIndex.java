@@ -0,0 +1,373 @@
+package RedBox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+
+import cipher.BufferChain;
+import cipher.BufferCipher;
+import random.RandomCipher;
+import random.RandomCipherInputStream;
+
+
+/**
+ * seek index for files in the single stream format. The format can only be decrypted from
+ * the start: the RandomCipher keystream comes from a generator that runs from the nonce, and
+ * each CFB round needs the cipher text before it. One pass over a file records, every interval
+ * bytes of plain text, the generator state and the last cipher text block of every Blowfish
+ * and AES round. A reader restores the checkpoint before a position and decrypts from there.
+ *
+ * The index is a separate file, encrypted with the file's own key in the seekable format so
+ * one checkpoint can be read without decrypting the others.
+ *
+ * <pre>
+ *   MAGIC (8 bytes) | size of the indexed file (long) | interval (int) | state slot (int)
+ *   { state length (int) | generator state, padded to the slot | Blowfish blocks | AES blocks } ...
+ * </pre>
+ *
+ * Checkpoint k is at plain text position k * interval.
+ *
+ * @author mclark
+ *
+ */
+public class LegacyIndex {
+
+	/*
+	 * marks the start of the plain text of an index
+	 */
+	static final byte[] MAGIC = "RedBoxI1".getBytes(StandardCharsets.US_ASCII);
+
+	/*
+	 * bytes before the first checkpoint
+	 */
+	static final int HEADER_SIZE = MAGIC.length + 8 + 4 + 4;
+
+	/*
+	 * default plain text bytes between checkpoints
+	 */
+	public static final int DEFAULT_INTERVAL = 1024*1024*16;
+
+	/*
+	 * block size of the encrypted index, a few checkpoints
+	 */
+	private static final int INDEX_BLOCK_SIZE = 1024*16;
+
+	/*
+	 * bytes read from the file at a time
+	 */
+	static final int SLICE = 1024*64;
+
+	/*
+	 * the generator state can grow by one cipher key after the first checkpoint, when
+	 * CBRNG is first used
+	 */
+	private static final int STATE_GROWTH = 16;
+
+	/*
+	 * name added to a file for its index
+	 */
+	private static final String SUFFIX = ".idx";
+
+	final static String errorMessage = "usage: <password> <file> [<index>] [<interval MB>]"
+			+ "\nmakes a seek index for a file in the single stream format, <file>" + SUFFIX + " by default\n";
+
+
+	public static void main(final String[] args) throws IOException {
+
+		if (args.length < 2) {
+			System.out.println(errorMessage);
+			System.exit(1);
+		}
+
+		final Path file = Paths.get(args[1]);
+		final Path index = args.length > 2 ? Paths.get(args[2]) : indexPath(file);
+		final int interval = args.length > 3 ? Integer.parseInt(args[3]) * 1024*1024 : DEFAULT_INTERVAL;
+
+		build(file, index, new EncryptionKey(args[0]), interval);
+	}
+
+
+	/**
+	 * the default index of a file
+	 *
+	 * @param file encrypted file
+	 * @return path of its index
+	 */
+	public static Path indexPath(final Path file) {
+		return file.resolveSibling(file.getFileName() + SUFFIX);
+	}
+
+
+	/**
+	 * make the index of a file in one pass. Nothing is written to the file.
+	 *
+	 * @param file file in the single stream format, with or without a key derivation header
+	 * @param index index to write, replaced if it exists
+	 * @param KEY encryption key of the file
+	 * @param interval plain text bytes between checkpoints, a multiple of 16
+	 * @throws IOException if the file can't be read or is not in the single stream format
+	 */
+	public static void build(final Path file, final Path index, final EncryptionKey KEY, final int interval)
+			throws IOException {
+
+		try (final FileChannel input = FileChannel.open(file, StandardOpenOption.READ)) {
+
+			final Stream stream = new Stream(input, KEY);
+
+			// every round must be at the end of a block at each checkpoint
+			if (interval <= 0 || interval % stream.cascade.aesCipher.ivSize() != 0
+					|| interval % stream.cascade.blowfishCipher.ivSize() != 0) {
+				throw new IllegalArgumentException("interval must be a multiple of the cipher block sizes");
+			}
+
+			final ByteBuffer ivs = ByteBuffer.allocate(stream.blowfishHeader);
+			final byte[][] blowfish;
+			final byte[][] aes;
+			final RandomCipher xor;
+			final BufferCipher chain;
+
+			try {
+				// the nonce, then the Blowfish IVs
+				xor = new RandomCipher(stream.cascade.randomKey.getBytes(), Cipher.DECRYPT_MODE);
+				xor.update(read(input, stream.start, stream.nonce + stream.blowfishHeader), ivs);
+				ivs.flip();
+				blowfish = blocks(ivs, stream.cascade.blowfishCipher.ivSize());
+
+				// the AES IVs, the first bytes inside the Blowfish layer
+				final BufferCipher bf = stream.cascade.blowfishCipher.getBufferDecryptor(blowfish);
+				final ByteBuffer encrypted = read(input, stream.start + stream.nonce + stream.blowfishHeader,
+						stream.aesHeader);
+				final ByteBuffer mid = ByteBuffer.allocate(stream.aesHeader);
+				final ByteBuffer out = ByteBuffer.allocate(bf.getOutputSize(stream.aesHeader));
+				xor.update(encrypted, mid);
+				mid.flip();
+				bf.update(mid, out);
+				out.flip();
+
+				aes = blocks(out, stream.cascade.aesCipher.ivSize());
+				chain = new BufferChain(xor, bf, stream.cascade.aesCipher.getBufferDecryptor(aes));
+
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+
+			final int slot = xor.getState().length + STATE_GROWTH;
+
+			try (final OutputStream encrypted = new SeekableEngine(INDEX_BLOCK_SIZE, ForkJoinPool.commonPool())
+					.output(stream.cascade, new BufferedOutputStream(Files.newOutputStream(index)))) {
+
+				final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(encrypted));
+
+				dos.write(MAGIC);
+				dos.writeLong(input.size());
+				dos.writeInt(interval);
+				dos.writeInt(slot);
+
+				final ByteBuffer in = ByteBuffer.allocate(SLICE);
+				final ByteBuffer out = ByteBuffer.allocate(chain.getOutputSize(SLICE));
+				long position = stream.dataStart;
+
+				for (long plain = 0; plain == 0 || plain < stream.size; plain += interval) {
+
+					checkpoint(dos, xor.getState(), slot, blowfish, aes);
+
+					// decrypt to the next checkpoint; only the registers are kept
+					final long end = stream.dataStart + Math.min(stream.size, plain + interval);
+					while (position < end) {
+						in.clear();
+						in.limit((int) Math.min(SLICE, end - position));
+						while (in.hasRemaining()) {
+							if (input.read(in, position + in.position()) < 0) {
+								throw new IOException("truncated file");
+							}
+						}
+						in.flip();
+						position += in.remaining();
+
+						out.clear();
+						chain.update(in, out);
+					}
+				}
+
+				dos.flush();
+			}
+		}
+	}
+
+
+	/**
+	 * open an indexed file for reading at any position
+	 *
+	 * @param file file in the single stream format
+	 * @param index index made for the file by build()
+	 * @param KEY encryption key of the file
+	 * @return plain text of the file, read only
+	 * @throws IOException if the index is not for this file or can't be read
+	 */
+	public static SeekableByteChannel open(final Path file, final Path index, final EncryptionKey KEY)
+			throws IOException {
+
+		final FileChannel input = FileChannel.open(file, StandardOpenOption.READ);
+		FileChannel indexFile = null;
+
+		try {
+			final Stream stream = new Stream(input, KEY);
+
+			indexFile = FileChannel.open(index, StandardOpenOption.READ);
+			final SeekableCipherChannel checkpoints = SeekableEngine.open(indexFile, 0, stream.cascade);
+
+			return new LegacyCipherChannel(stream, input, checkpoints);
+
+		} catch (IOException | RuntimeException e) {
+			input.close();
+			if (indexFile != null) {
+				indexFile.close();
+			}
+			throw e;
+		}
+	}
+
+
+	/**
+	 * write one checkpoint
+	 *
+	 * @param dos index
+	 * @param state generator state
+	 * @param slot room for the generator state
+	 * @param blowfish Blowfish registers
+	 * @param aes AES registers
+	 * @throws IOException on error
+	 */
+	private static void checkpoint(final DataOutputStream dos, final byte[] state, final int slot,
+			final byte[][] blowfish, final byte[][] aes) throws IOException {
+
+		if (state.length > slot) {
+			throw new IllegalStateException("generator state grew from the first checkpoint");
+		}
+
+		dos.writeInt(state.length);
+		dos.write(state);
+		dos.write(new byte[slot - state.length]);
+
+		for (byte[] register : blowfish) {
+			dos.write(register);
+		}
+		for (byte[] register : aes) {
+			dos.write(register);
+		}
+	}
+
+
+	/**
+	 * split bytes into blocks
+	 *
+	 * @param bytes bytes to split, read to the limit
+	 * @param size bytes per block
+	 * @return blocks
+	 * @throws IOException if there are too few bytes
+	 */
+	static byte[][] blocks(final ByteBuffer bytes, final int size) throws IOException {
+
+		if (bytes.remaining() % size != 0) {
+			throw new IOException("truncated file");
+		}
+
+		final byte[][] blocks = new byte[bytes.remaining() / size][size];
+		for (byte[] block : blocks) {
+			bytes.get(block);
+		}
+		return blocks;
+	}
+
+
+	/**
+	 * read part of a file
+	 *
+	 * @param input file
+	 * @param position first byte
+	 * @param len bytes to read
+	 * @return bytes read, ready to be read
+	 * @throws IOException if the file ends first
+	 */
+	private static ByteBuffer read(final FileChannel input, final long position, final int len) throws IOException {
+
+		final ByteBuffer bytes = ByteBuffer.allocate(len);
+		while (bytes.hasRemaining()) {
+			if (input.read(bytes, position + bytes.position()) < 0) {
+				throw new IOException("truncated file");
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+
+	/**
+	 * the layout of a file in the single stream format: where its headers and data are
+	 */
+	static final class Stream {
+
+		final CipherCascade cascade;
+
+		/*
+		 * file position of the nonce, after the key derivation header if any
+		 */
+		final long start;
+
+		/*
+		 * bytes of the nonce and of the IVs of each layer
+		 */
+		final int nonce;
+		final int blowfishHeader;
+		final int aesHeader;
+
+		/*
+		 * file position of the first byte of encrypted data, and the plain text size
+		 */
+		final long dataStart;
+		final long size;
+
+		/**
+		 * find the layout of a file and derive its cascade
+		 *
+		 * @param input open file
+		 * @param KEY encryption key
+		 * @throws IOException if the file is a container or too short
+		 */
+		Stream(final FileChannel input, final EncryptionKey KEY) throws IOException {
+
+			final LaneKeyDerivation used = LaneKeyDerivation.read(input);
+			start = used == null ? 0 : LaneKeyDerivation.HEADER_SIZE;
+
+			if (MappedFileStreams.startsWith(input, start, ChunkedEngine.MAGIC)
+					|| MappedFileStreams.startsWith(input, start, SeekableEngine.MAGIC)) {
+				throw new IOException("not in the single stream format");
+			}
+
+			cascade = new CipherCascade(used == null ? KEY : KEY.withDerivation(used));
+			nonce = RandomCipherInputStream.nonceSize(cascade.randomKey.getBytes());
+			blowfishHeader = cascade.blowfishCipher.headerSize();
+			aesHeader = cascade.aesCipher.headerSize();
+
+			dataStart = start + nonce + blowfishHeader + aesHeader;
+			size = input.size() - dataStart;
+
+			if (size < 0) {
+				throw new IOException("truncated file");
+			}
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package RedBox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * streams over memory mapped files. The file is mapped one window at a time, so files
+ * larger than a single mapping can be used, and reads and writes are copies to and
+ * from the mapping instead of a system call for every buffer.
+ *
+ * @author mclark
+ *
+ */
+class MappedFileStreams {
+
+	/*
+	 * bytes mapped at a time
+	 */
+	static final long WINDOW = 1024*1024*64;
+
+
+	/**
+	 * check if a file starts with the given bytes
+	 *
+	 * @param channel open file
+	 * @param prefix bytes to look for
+	 * @return true if the file starts with the prefix
+	 * @throws IOException on error
+	 */
+	static boolean startsWith(final FileChannel channel, final byte[] prefix) throws IOException {
+		return startsWith(channel, 0, prefix);
+	}
+
+
+	/**
+	 * check if a file has the given bytes at a position
+	 *
+	 * @param channel open file
+	 * @param position file position to look at
+	 * @param prefix bytes to look for
+	 * @return true if the bytes are found
+	 * @throws IOException on error
+	 */
+	static boolean startsWith(final FileChannel channel, final long position, final byte[] prefix) throws IOException {
+
+		if (channel.size() - position < prefix.length) {
+			return false;
+		}
+
+		final MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, position, prefix.length);
+		for (byte b : prefix) {
+			if (head.get() != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * input stream reading a file through read only mapped windows
+	 */
+	static class MappedInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private final long size;
+		private long position = 0;
+		private MappedByteBuffer window = null;
+
+		/**
+		 * create a stream reading the whole file
+		 *
+		 * @param channel file open for reading
+		 * @throws IOException on error
+		 */
+		MappedInputStream(final FileChannel channel) throws IOException {
+			this(channel, 0);
+		}
+
+		/**
+		 * create a stream reading the file from a position
+		 *
+		 * @param channel file open for reading
+		 * @param start file position of the first byte read
+		 * @throws IOException on error
+		 */
+		MappedInputStream(final FileChannel channel, final long start) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.position = start;
+		}
+
+		/**
+		 * make sure the current window has bytes left
+		 *
+		 * @return false at the end of the file
+		 * @throws IOException on error
+		 */
+		private boolean nextWindow() throws IOException {
+
+			if (window != null && window.hasRemaining()) {
+				return true;
+			}
+
+			if (position >= size) {
+				return false;
+			}
+
+			final long len = Math.min(WINDOW, size - position);
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, len);
+			position += len;
+			return true;
+		}
+
+		public int read() throws IOException {
+			return nextWindow() ? window.get() & 0xFF : -1;
+		}
+
+		public int read(final byte[] b, final int offset, final int len) throws IOException {
+
+			if (len == 0) {
+				return 0;
+			}
+
+			if (!nextWindow()) {
+				return -1;
+			}
+
+			final int n = Math.min(len, window.remaining());
+			window.get(b, offset, n);
+			return n;
+		}
+
+		public int available() {
+			return window == null ? 0 : window.remaining();
+		}
+	}
+
+
+	/**
+	 * output stream writing a file through read write mapped windows. The file is
+	 * mapped up to the expected size, which grows it to that size once, and is cut
+	 * back to the bytes actually written when the stream is closed.
+	 */
+	static class MappedOutputStream extends OutputStream {
+
+		private final FileChannel channel;
+		private final long expected;
+		private long mapped = 0;
+		private long written = 0;
+		private MappedByteBuffer window = null;
+		private boolean closed = false;
+
+		/**
+		 * create a stream writing a file from the start
+		 *
+		 * @param channel file open for reading and writing
+		 * @param expected number of bytes that will be written
+		 */
+		MappedOutputStream(final FileChannel channel, final long expected) {
+			this.channel = channel;
+			this.expected = expected;
+		}
+
+		/**
+		 * make sure the current window has room
+		 *
+		 * @throws IOException on error
+		 */
+		private void nextWindow() throws IOException {
+
+			if (window != null && window.hasRemaining()) {
+				return;
+			}
+
+			// past the expected size keep going a window at a time
+			final long len = mapped < expected ? Math.min(WINDOW, expected - mapped) : WINDOW;
+			window = channel.map(FileChannel.MapMode.READ_WRITE, mapped, len);
+			mapped += len;
+		}
+
+		public void write(final int b) throws IOException {
+
+			if (closed) {
+				throw new IOException("stream closed");
+			}
+
+			nextWindow();
+			window.put((byte) b);
+			written++;
+		}
+
+		public void write(final byte[] b, int offset, int len) throws IOException {
+
+			if (closed) {
+				throw new IOException("stream closed");
+			}
+
+			while (len > 0) {
+				nextWindow();
+				final int n = Math.min(len, window.remaining());
+				window.put(b, offset, n);
+				offset += n;
+				len -= n;
+				written += n;
+			}
+		}
+
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			window = null;
+
+			if (channel.size() != written) {
+				channel.truncate(written);
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package RedBox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import random.RandomCipherInputStream;
+import random.RandomCipherOutputStream;
+
+
+/**
+ * runs each layer of the cipher cascade on its own thread. The layers are connected
+ * by block pipes, so while one layer works on a block the others work on the blocks
+ * before and after it, and throughput approaches that of the slowest layer rather
+ * than the sum of all three. The bytes produced are the same as the serial cascade.
+ *
+ * <pre>
+ * encrypt:  caller: AES  -> pipe -> thread: Blowfish -> pipe -> thread: RandomCipher
+ * decrypt:  thread: RandomCipher -> pipe -> thread: Blowfish -> pipe -> caller: AES
+ * </pre>
+ *
+ * @author mclark
+ *
+ */
+class PipelinedEngine {
+
+	/*
+	 * blocks in each pipe
+	 */
+	private static final int PIPE_BLOCKS = 8;
+
+	/*
+	 * bytes in each block
+	 */
+	private static final int BLOCK_SIZE = 1024*64;
+
+
+	/**
+	 * a cascade layer running on its own thread. A failure is recorded and passed
+	 * to the pipes the layer is connected to, so the other layers stop.
+	 */
+	private static abstract class Stage extends Thread {
+
+		private final BlockPipe[] pipes;
+		private volatile Throwable failure = null;
+
+		Stage(final String name, final BlockPipe... pipes) {
+			super(name);
+			this.pipes = pipes;
+			setDaemon(true);
+		}
+
+		abstract void work() throws Exception;
+
+		public final void run() {
+			try {
+				work();
+			} catch (Throwable t) {
+				failure = t;
+				for (BlockPipe pipe : pipes) {
+					pipe.fail(t);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * encrypt a stream, one thread per layer
+	 *
+	 * @param cascade cipher cascade
+	 * @param in plain text
+	 * @param out encrypted text
+	 * @throws IOException on error in any layer
+	 */
+	void encrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final BlockPipe aesOut = new BlockPipe(PIPE_BLOCKS, BLOCK_SIZE);
+		final BlockPipe blowfishOut = new BlockPipe(PIPE_BLOCKS, BLOCK_SIZE);
+
+		final Stage random = new Stage("RedBox RandomCipher", blowfishOut) {
+			void work() throws Exception {
+				final RandomCipherOutputStream xorOutputStream =
+						new RandomCipherOutputStream(EngineMetrics.timed(EngineMetrics.Stage.IO, out), cascade.randomKey);
+				copy(blowfishOut.input(), EngineMetrics.timed(EngineMetrics.Stage.RANDOM_CIPHER, xorOutputStream));
+				xorOutputStream.close();
+			}
+		};
+
+		final Stage blowfish = new Stage("RedBox Blowfish", aesOut, blowfishOut) {
+			void work() throws Exception {
+				final OutputStream bf = cascade.blowfishCipher.getCipherOutputStream(blowfishOut.output());
+				copy(aesOut.input(), EngineMetrics.timed(EngineMetrics.Stage.BLOWFISH, bf));
+				bf.close();
+			}
+		};
+
+		random.start();
+		blowfish.start();
+
+		EngineMetrics.enter(EngineMetrics.Stage.AES);
+		try {
+			cascade.aesCipher.encrypt(EngineMetrics.timed(EngineMetrics.Stage.IO, in), aesOut.output());
+		} finally {
+			EngineMetrics.exit();
+			finish(aesOut, blowfish, random);
+		}
+	}
+
+
+	/**
+	 * decrypt a stream, one thread per layer
+	 *
+	 * @param cascade cipher cascade
+	 * @param in encrypted text
+	 * @param out plain text
+	 * @throws IOException on error in any layer
+	 */
+	void decrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final BlockPipe randomOut = new BlockPipe(PIPE_BLOCKS, BLOCK_SIZE);
+		final BlockPipe blowfishOut = new BlockPipe(PIPE_BLOCKS, BLOCK_SIZE);
+
+		final Stage random = new Stage("RedBox RandomCipher", randomOut) {
+			void work() throws Exception {
+				final RandomCipherInputStream xorInputStream =
+						new RandomCipherInputStream(EngineMetrics.timed(EngineMetrics.Stage.IO, in), cascade.randomKey);
+				copy(EngineMetrics.timed(EngineMetrics.Stage.RANDOM_CIPHER, xorInputStream), randomOut.output());
+				randomOut.output().close();
+			}
+		};
+
+		final Stage blowfish = new Stage("RedBox Blowfish", randomOut, blowfishOut) {
+			void work() throws Exception {
+				final InputStream bf = cascade.blowfishCipher.getCipherInputStream(randomOut.input());
+				copy(EngineMetrics.timed(EngineMetrics.Stage.BLOWFISH, bf), blowfishOut.output());
+				blowfishOut.output().close();
+			}
+		};
+
+		random.start();
+		blowfish.start();
+
+		EngineMetrics.enter(EngineMetrics.Stage.AES);
+		try {
+			cascade.aesCipher.decrypt(blowfishOut.input(), EngineMetrics.timed(EngineMetrics.Stage.IO, out));
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		} finally {
+			EngineMetrics.exit();
+			finish(blowfishOut, blowfish, random);
+		}
+	}
+
+
+	/**
+	 * wait for the layer threads and report the first failure
+	 *
+	 * @param callerPipe pipe the calling thread uses, failed if a layer failed
+	 * @param stages layer threads
+	 * @throws IOException if a layer failed
+	 */
+	private static void finish(final BlockPipe callerPipe, final Stage... stages) throws IOException {
+
+		Throwable failure = null;
+
+		for (Stage stage : stages) {
+			try {
+				stage.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				callerPipe.fail(e);
+				failure = e;
+			}
+
+			if (failure == null) {
+				failure = stage.failure;
+			}
+		}
+
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+
+	/**
+	 * copy a stream to the end
+	 *
+	 * @param in input
+	 * @param out output
+	 * @throws IOException on error
+	 */
+	private static void copy(final InputStream in, final OutputStream out) throws IOException {
+
+		final byte[] buffer = new byte[BLOCK_SIZE];
+		int bytesRead = 0;
+
+		while ((bytesRead = in.read(buffer)) > 0) {
+			out.write(buffer, 0, bytesRead);
+		}
+	}
+}
@@ -6,9 +6,7 @@ import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.CharBuffer;
@@ -52,8 +50,6 @@ public class RedBox extends JFrame implements ActionListener {
 	final String password_file_label = "Select file...";
 	final String action_encrypt = "Encrypt";
 	final String action_decrypt = "Decrypt";
-	final String default_decrypt_extension = ".decrypt";
-	final String default_encrypt_extension = ".bin";
 	final String charset = "UTF-8";
 	final String RELEASEDATE = "29 Dec 2020";
 
@@ -256,9 +252,6 @@ public class RedBox extends JFrame implements ActionListener {
 				
 				try {
 
-					RedBoxEngine.mode command;
-					File cfile;
-
 					final char[] pass = password.getPassword();
 
 					final byte[] okey = Charset.forName(charset)
@@ -266,44 +259,29 @@ public class RedBox extends JFrame implements ActionListener {
 
 					EncryptionKey key = new EncryptionKey(okey);
 
-					if (encrypt.isSelected()) {
-						command = RedBoxEngine.mode.ENCRYPT;
-						cfile = new File(file.getCanonicalPath() + default_encrypt_extension);
-
-						int fileUniquer = 1;
-						while (cfile.exists()) {
-							cfile = new File(file.getCanonicalPath() + fileUniquer++ + default_encrypt_extension);
-						}
+					final RedBoxEngine.mode command = encrypt.isSelected() 
+							? RedBoxEngine.mode.ENCRYPT : RedBoxEngine.mode.DECRYPT;
+					final File cfile = BatchEngine.targetFile(file, command);
 
-					} else {
+					System.out.println("creating file:\n" + cfile);
 
-						command = RedBoxEngine.mode.DECRYPT;
-						String fname = file.getCanonicalPath();
-						int fileUniquer = 1;
+					RedBoxEngine.planned(RedBoxEngine.format.STREAM, null)
+							.go(command, key, file.toPath(), cfile.toPath());
 
-						if (fname.lastIndexOf(".") > -1 ) {
-							cfile = new File(fname.substring(0, fname.lastIndexOf(".")));
-							while (cfile.exists()) {
-								cfile = new File(fname.substring(0, fname.lastIndexOf(".") + fileUniquer++));
-							}
-						} else {
-							cfile = new File(fname + default_decrypt_extension);
-							while (cfile.exists()) {
-								cfile = new File(fname + fileUniquer++ + default_decrypt_extension);
-							}
+					final EngineEvents.FileDeleteEvent event = new EngineEvents.FileDeleteEvent();
+					final long size = event.isEnabled() ? file.length() : 0;
+					event.begin();
+					final boolean deleted = file.delete();
+					event.end();
 
-						}
+					if (event.shouldCommit()) {
+						event.path = file.toString();
+						event.size = size;
+						event.deleted = deleted;
+						event.commit();
 					}
 
-					final FileInputStream  in  = new FileInputStream(file);
-					final FileOutputStream out = new FileOutputStream(cfile);
-					System.out.println("creating file:\n" + cfile);
-
-					new RedBoxEngine().go(command, key, in, out);
-
-					System.gc();
-
-					if (file.delete()) {
+					if (deleted) {
 						System.out.println("\tdeleted " + file);
 					} else {
 						System.out.println("\tfailed to delete " + file);
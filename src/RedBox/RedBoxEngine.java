@@ -1,17 +1,28 @@
 package RedBox;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import javax.crypto.NoSuchPaddingException;
 
-import cipher.CipherStream;
-import random.RandomCipherOutputStream;
-import random.RandomCipherInputStream;
 
 
 
@@ -27,17 +38,147 @@ public class RedBoxEngine {
 	 * error message for incorrect  invocation
 	 */
 	final static String errorMessage = "usage: -e <password> to encrypt,  -d <password> to decrypt. "
-			+	"\nReads from standard input and writes to standard output\n"
+			+	"\n-ec <password> encrypts in the chunked format, which uses all processors"
+			+	"\n-es <password> encrypts in the seekable format, which can be read from any position"
+			+	"\n-ep <password> or -dp <password> runs each cipher layer on its own thread"
+			+	"\n-ea <password> <source> <target> or -da ... overlaps file reads and writes with the cipher work"
+			+	"\n-eb <password> <file or directory>... or -db ... processes many files, keeping the originals."
+			+	"\n-ek <password> derives the keys with a cost calibrated to this machine, recorded in the output"
+			+	"\n   the other options can be combined, for example -ebc"
+			+	"\n   without -p or -a the execution calibrated for this machine is used, kept in ~/.redbox\n"
+			+	"\nReads from standard input and writes to standard output,"
+			+	"\nor from <source> to <target> when given as -e <password> <source> <target>\n"
 			+   "set environment variables EKEY for the key\n";
 
 	
 	public enum mode { ENCRYPT, DECRYPT };
 	
+	/*
+	 * container format written when encrypting. STREAM is the original single
+	 * stream format, CHUNKED splits the input into chunks processed in parallel.
+	 * SEEKABLE splits it into blocks of a fixed size, so any block can be found
+	 * and decrypted alone.
+	 */
+	public enum format { STREAM, CHUNKED, SEEKABLE };
+	
+	/*
+	 * how a single stream is run. SERIAL runs every cipher layer on the calling
+	 * thread, PIPELINED runs each layer on its own thread. Chunks of the chunked
+	 * format are already run in parallel, so they are always serial. ASYNC applies
+	 * to file to file jobs, keeping reads and writes in flight with asynchronous
+	 * file channels while the cascade works; for streams it is the same as SERIAL.
+	 */
+	public enum execution { SERIAL, PIPELINED, ASYNC };
+	
+	/*
+	 * format used for encryption
+	 */
+	private final format encryptFormat;
+	
+	/*
+	 * how single streams are run
+	 */
+	private final execution streamExecution;
+	
+	/*
+	 * key derivation used when encrypting, recorded in a header before the
+	 * encrypted data. null for the original key stretching and no header.
+	 */
+	private final LaneKeyDerivation derivation;
+	
+	/*
+	 * buffer size, chunk size and threads
+	 */
+	private final EnginePlan plan;
+	
+	/*
+	 * time for one key stretch with a calibrated derivation. The cascade
+	 * stretches four times: the user key and each layer key.
+	 */
+	private static final long KDF_MILLIS = 250;
+	
+	
+	/**
+	 * engine that encrypts in the single stream format
+	 */
+	public RedBoxEngine() {
+		this(format.STREAM);
+	}
+	
+	
+	/**
+	 * engine that encrypts in the given format. Decryption reads either format.
+	 * 
+	 * @param encryptFormat format to write when encrypting
+	 */
+	public RedBoxEngine(final format encryptFormat) {
+		this(encryptFormat, execution.SERIAL);
+	}
+	
+	
+	/**
+	 * engine that encrypts in the given format and runs single streams as given.
+	 * 
+	 * @param encryptFormat format to write when encrypting
+	 * @param streamExecution how single streams are run
+	 */
+	public RedBoxEngine(final format encryptFormat, final execution streamExecution) {
+		this(encryptFormat, streamExecution, null);
+	}
+	
+	
+	/**
+	 * engine that encrypts in the given format, runs single streams as given and
+	 * stretches keys with the given derivation. Decryption uses the derivation
+	 * recorded in the input.
+	 * 
+	 * @param encryptFormat format to write when encrypting
+	 * @param streamExecution how single streams are run
+	 * @param derivation key derivation for encryption, or null for the original
+	 */
+	public RedBoxEngine(final format encryptFormat, final execution streamExecution,
+			final LaneKeyDerivation derivation) {
+		this(encryptFormat, streamExecution, derivation, EnginePlan.DEFAULT);
+	}
+	
+	
+	/**
+	 * engine with every setting given
+	 * 
+	 * @param encryptFormat format to write when encrypting
+	 * @param streamExecution how single streams are run
+	 * @param derivation key derivation for encryption, or null for the original
+	 * @param plan buffer size, chunk size and threads
+	 */
+	public RedBoxEngine(final format encryptFormat, final execution streamExecution,
+			final LaneKeyDerivation derivation, final EnginePlan plan) {
+		this.encryptFormat = encryptFormat;
+		this.streamExecution = streamExecution;
+		this.derivation = derivation;
+		this.plan = plan;
+	}
+	
+	
+	/**
+	 * engine with the settings calibrated for this machine
+	 * 
+	 * @param encryptFormat format to write when encrypting
+	 * @param derivation key derivation for encryption, or null for the original
+	 * @return engine
+	 */
+	public static RedBoxEngine planned(final format encryptFormat, final LaneKeyDerivation derivation) {
+		final EnginePlan plan = EnginePlan.get();
+		return new RedBoxEngine(encryptFormat, plan.execution, derivation, plan);
+	}
+	
 	public static void main(String[] args) throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
 		
 		EncryptionKey KEY = null;
 		
-		final mode command = args[0].startsWith("-e") ? mode.ENCRYPT : mode.DECRYPT;
+		if (args.length == 0 || !(args[0].startsWith("-e") || args[0].startsWith("-d"))) {
+			System.out.println(errorMessage);
+			System.exit(1);
+		}
 		
 		/*
 		 * get KEY from environment, if set.
@@ -50,14 +191,47 @@ public class RedBoxEngine {
 			
 			KEY = new EncryptionKey(System.getenv(KeyEnvironmentVariable).getBytes());
 		
-		} else if (args.length == 0 || (KEY == null && args.length < 2)) {
+		} else {
 			
 			System.out.println(errorMessage);
 			System.exit(1);
 		}
 		
+		final boolean batched = args[0].indexOf('b', 2) > 0;
+		final String[] paths = Arrays.copyOfRange(args, Math.min(2, args.length), args.length);
+		
+		if (batched && paths.length == 0) {
+			System.out.println(errorMessage);
+			System.exit(1);
+		}
 		
-		new RedBoxEngine().go(command, KEY, System.in, System.out);
+		/*
+		 * the arguments are checked before anything is calibrated, so a mistake is
+		 * reported straight away and doesn't leave a plan behind
+		 */
+		final mode command = args[0].startsWith("-e") ? mode.ENCRYPT : mode.DECRYPT;
+		final format encryptFormat = args[0].indexOf('c', 2) > 0 ? format.CHUNKED
+				: args[0].indexOf('s', 2) > 0 ? format.SEEKABLE : format.STREAM;
+		final execution chosen = args[0].indexOf('p', 2) > 0 ? execution.PIPELINED
+				: args[0].indexOf('a', 2) > 0 ? execution.ASYNC : null;
+		
+		// the plan is only looked up, or calibrated, when the execution is left to it
+		final EnginePlan plan = chosen == null ? EnginePlan.get() : EnginePlan.DEFAULT;
+		final execution streamExecution = chosen == null ? plan.execution : chosen;
+		final LaneKeyDerivation derivation = command.equals(mode.ENCRYPT) && args[0].indexOf('k', 2) > 0
+				? LaneKeyDerivation.calibrate(KDF_MILLIS, LaneKeyDerivation.DEFAULT_LANES) : null;
+		
+		
+		final RedBoxEngine engine = new RedBoxEngine(encryptFormat, streamExecution, derivation, plan);
+		
+		if (batched) {
+			final BatchEngine batch = new BatchEngine(engine, command, KEY, plan.threads);
+			System.exit(batch.run(paths));
+		} else if (args.length > 3) {
+			engine.go(command, KEY, Paths.get(args[2]), Paths.get(args[3]));
+		} else {
+			engine.go(command, KEY, System.in, System.out);
+		}
 	}
 	
 
@@ -77,40 +251,432 @@ public class RedBoxEngine {
 					throws UnsupportedEncodingException, InvalidKeyException,
 					NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException  {
 
+		final EngineMetrics.Job job = EngineMetrics.start();
+		boolean done = false;
+
 		try {
-			final EncryptionKey aesKey = new EncryptionKey(KEY);
-			final CipherStream aesCipher = new CipherStream("AES/CFB/NoPadding", 16, aesKey);
-			final EncryptionKey blowfishKey = new EncryptionKey(aesKey);
-			final CipherStream blowfishCipher = new CipherStream("Blowfish/CFB/NoPadding", 8, blowfishKey);
-			final EncryptionKey randomKey = new EncryptionKey(blowfishKey);
-
-			if (command.equals(mode.ENCRYPT)) {
-				/*
-				 * inputstream -> aesCipher -> blowfishCipher -> randomCipher -> xorOutputStream
-				 * 
-				 */
-				final RandomCipherOutputStream xorOutputStream = new RandomCipherOutputStream(out, randomKey);
-				final OutputStream bf = blowfishCipher.getCipherOutputStream(xorOutputStream);
-				aesCipher.encrypt(in, bf);
-
-				xorOutputStream.close();
-				bf.close();
-
-			} else if (command.equals(mode.DECRYPT)) {
-
-				final RandomCipherInputStream xorInputStream = new RandomCipherInputStream(in, randomKey);
-				final InputStream bf = blowfishCipher.getCipherInputStream(xorInputStream);
-				aesCipher.decrypt(bf, out);
-
-				xorInputStream.close();
-				bf.close();
-			}
+			final OutputStream counted = job.output(out);
+			final PushbackInputStream pin = new PushbackInputStream(job.input(in), LaneKeyDerivation.HEADER_SIZE);
+			run(command, cascade(command, KEY, pin, counted), pin, counted);
 
 			in.close();
 			out.close();
+			done = true;
 
 		} catch (java.io.IOException io) {
 			io.printStackTrace();
-		} 
+		} finally {
+			job.end(done);
+		}
+	}
+	
+	
+	/**
+	 * encrypt or decrypt a file into another file. Both files are memory mapped, the
+	 * output pre-sized to its final length when that is known, so the cascade reads
+	 * and writes mapped windows instead of making a system call for every buffer.
+	 * With ASYNC execution single stream files are instead read and written with
+	 * asynchronous channels, several buffers in flight each way.
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param source file to read
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	public void go(final mode command, final EncryptionKey KEY, final Path source, final Path target)
+			throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		final EngineMetrics.Job job = EngineMetrics.start();
+		final EngineEvents.FileEvent event = new EngineEvents.FileEvent();
+		event.begin();
+		boolean done = false;
+
+		try {
+			process(command, KEY, source, target);
+			job.read(Files.size(source));
+			job.wrote(Files.size(target));
+			done = true;
+		} finally {
+			job.end(done);
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.source = source.toString();
+				event.target = target.toString();
+				event.command = command.name();
+				event.format = encryptFormat.name();
+				event.bytesIn = source.toFile().length();
+				event.bytesOut = target.toFile().length();
+				event.succeeded = done;
+				event.commit();
+			}
+		}
+	}
+	
+	
+	/**
+	 * encrypt or decrypt a file into another file, the work of go()
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param source file to read
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	private void process(final mode command, final EncryptionKey KEY, final Path source, final Path target)
+			throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		/*
+		 * a key derivation header is written before the encrypted data, or
+		 * skipped before decrypting
+		 */
+		final LaneKeyDerivation used;
+		if (command.equals(mode.ENCRYPT)) {
+			used = derivation;
+		} else {
+			try (final FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+				used = LaneKeyDerivation.read(input);
+			}
+		}
+		
+		final CipherCascade cascade = cascade(KEY, used);
+		final byte[] header = command.equals(mode.ENCRYPT) && used != null ? used.header() : new byte[0];
+		final long start = command.equals(mode.DECRYPT) && used != null ? LaneKeyDerivation.HEADER_SIZE : 0;
+
+		final EngineEvents.StreamingEvent event = new EngineEvents.StreamingEvent();
+		event.begin();
+
+		try {
+			stream(command, cascade, source, start, header, target);
+		} finally {
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.source = source.toString();
+				event.execution = streamExecution.name();
+				event.bytesIn = source.toFile().length();
+				event.bytesOut = target.toFile().length();
+				event.commit();
+			}
+		}
+	}
+	
+	
+	/**
+	 * run the data of a file through the cascade into another file
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param cascade cipher cascade
+	 * @param source file to read
+	 * @param start file position after the key derivation header, if any
+	 * @param header key derivation header to write first, or no bytes
+	 * @param target file to write, replaced if it exists
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	private void stream(final mode command, final CipherCascade cascade, final Path source, final long start,
+			final byte[] header, final Path target)
+			throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+			NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		if (streamExecution.equals(execution.ASYNC)) {
+
+			if (command.equals(mode.ENCRYPT) && encryptFormat.equals(format.STREAM)) {
+				new AsyncFileEngine().transform(cascade.encryptor(), source, start, header, target);
+				return;
+			}
+
+			if (command.equals(mode.DECRYPT)) {
+				final boolean container;
+				try (final FileChannel input = FileChannel.open(source, StandardOpenOption.READ)) {
+					container = isContainer(input, start);
+				}
+				if (!container) {
+					new AsyncFileEngine().transform(cascade.decryptor(), source, start, header, target);
+					return;
+				}
+			}
+		}
+
+		try (final FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+			 final FileChannel output = FileChannel.open(target, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			/*
+			 * the single stream format has a fixed overhead, so the output size is
+			 * known in advance. Containers are written through the channel.
+			 */
+			long expected = -1;
+
+			if (command.equals(mode.ENCRYPT) && encryptFormat.equals(format.STREAM)) {
+				expected = header.length + input.size() + cascade.overhead();
+			} else if (command.equals(mode.DECRYPT) && !isContainer(input, start)) {
+				expected = input.size() - start - cascade.overhead();
+			}
+
+			/*
+			 * the output is closed even when the run fails, which trims a pre-sized
+			 * file to the bytes written instead of leaving the rest of it zero filled
+			 */
+			try (final InputStream in = new MappedFileStreams.MappedInputStream(input, start);
+				 final OutputStream out = expected >= 0
+						? new MappedFileStreams.MappedOutputStream(output, expected)
+						: new BufferedOutputStream(Channels.newOutputStream(output), 1024*64)) {
+
+				out.write(header);
+
+				run(command, cascade, in, out);
+			}
+		}
+	}
+	
+	
+	/**
+	 * encrypt or decrypt from one channel to another. Single stream format data moves
+	 * through every cipher layer in direct ByteBuffers, from the channel read to the
+	 * channel write, without heap copies. Containers are read and written
+	 * through streams over the channels.
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param in channel to read
+	 * @param out channel to write
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	public void go(final mode command, final EncryptionKey KEY,
+			final ReadableByteChannel in, final WritableByteChannel out)
+					throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+					NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		final EngineMetrics.Job job = EngineMetrics.start();
+		boolean done = false;
+
+		try {
+			process(command, KEY, job.input(in), job.output(out));
+			done = true;
+		} finally {
+			job.end(done);
+		}
+	}
+	
+	
+	/**
+	 * encrypt or decrypt from one channel to another, the work of go()
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param in channel to read
+	 * @param out channel to write
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	private void process(final mode command, final EncryptionKey KEY,
+			final ReadableByteChannel in, final WritableByteChannel out)
+					throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+					NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		if (command.equals(mode.ENCRYPT)) {
+
+			final CipherCascade cascade = cascade(KEY, derivation);
+
+			if (derivation != null) {
+				final ByteBuffer header = ByteBuffer.wrap(derivation.header());
+				while (header.hasRemaining()) {
+					out.write(header);
+				}
+			}
+
+			if (encryptFormat.equals(format.STREAM)) {
+				CipherCascade.transfer(cascade.encryptor(), ByteBuffer.allocate(0), in, out);
+			} else {
+				run(command, cascade, Channels.newInputStream(in), Channels.newOutputStream(out));
+			}
+
+		} else if (command.equals(mode.DECRYPT)) {
+
+			final ByteBuffer head = ByteBuffer.allocate(LaneKeyDerivation.HEADER_SIZE + ChunkedEngine.MAGIC.length);
+			head.flip();
+
+			// the key derivation header, if any, then the magic number, if any
+			fill(in, head, LaneKeyDerivation.HEADER_SIZE);
+			final CipherCascade cascade = cascade(KEY, LaneKeyDerivation.read(head));
+			fill(in, head, ChunkedEngine.MAGIC.length);
+
+			final ByteBuffer magic = head.duplicate();
+			magic.limit(Math.min(magic.limit(), magic.position() + ChunkedEngine.MAGIC.length));
+
+			if (magic.equals(ByteBuffer.wrap(ChunkedEngine.MAGIC))
+					|| magic.equals(ByteBuffer.wrap(SeekableEngine.MAGIC))) {
+				run(command, cascade,
+						new SequenceInputStream(new ByteArrayInputStream(head.array(), head.position(), head.remaining()),
+								Channels.newInputStream(in)),
+						Channels.newOutputStream(out));
+			} else {
+				CipherCascade.transfer(cascade.decryptor(), head, in, out);
+			}
+		}
+
+		in.close();
+		out.close();
+	}
+	
+	
+	/**
+	 * check for a chunked or seekable container in a file
+	 * 
+	 * @param input open file
+	 * @param start file position after the key derivation header, if any
+	 * @return true if the file holds a container rather than a single stream
+	 * @throws IOException on error
+	 */
+	private static boolean isContainer(final FileChannel input, final long start) throws IOException {
+		return MappedFileStreams.startsWith(input, start, ChunkedEngine.MAGIC)
+				|| MappedFileStreams.startsWith(input, start, SeekableEngine.MAGIC);
+	}
+	
+	
+	/**
+	 * read from a channel until a buffer has the given number of bytes remaining,
+	 * or the input ends
+	 * 
+	 * @param in input channel
+	 * @param head buffer ready to be read from
+	 * @param len bytes wanted
+	 * @throws IOException on error
+	 */
+	private static void fill(final ReadableByteChannel in, final ByteBuffer head, final int len) throws IOException {
+		
+		head.compact();
+		while (head.position() < len && in.read(head) >= 0) {
+			// read the header, if any
+		}
+		head.flip();
+	}
+	
+	
+	/**
+	 * derive the cascade for a stream. When encrypting the key derivation header,
+	 * if any, is written to the output; when decrypting it is read from the input.
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param KEY encryption key
+	 * @param in input stream, with room to push back a header
+	 * @param out output stream
+	 * @return cipher cascade
+	 * @throws IOException on error
+	 */
+	private CipherCascade cascade(final mode command, final EncryptionKey KEY,
+			final PushbackInputStream in, final OutputStream out) throws IOException {
+		
+		if (command.equals(mode.ENCRYPT)) {
+			if (derivation != null) {
+				out.write(derivation.header());
+			}
+			return cascade(KEY, derivation);
+		}
+		
+		return cascade(KEY, LaneKeyDerivation.read(in));
+	}
+	
+	
+	/**
+	 * derive the cascade with a key derivation
+	 * 
+	 * @param KEY encryption key
+	 * @param used key derivation, or null to use the key as it is
+	 * @return cipher cascade
+	 * @throws IOException on error
+	 */
+	private CipherCascade cascade(final EncryptionKey KEY, final KeyDerivation used) throws IOException {
+		final EngineEvents.CipherSetupEvent event = new EngineEvents.CipherSetupEvent();
+		event.begin();
+		EngineMetrics.enter(EngineMetrics.Stage.CIPHER_SETUP);
+
+		try {
+			return new CipherCascade(used == null ? KEY : KEY.withDerivation(used), plan.bufferSize, plan.prefetch);
+		} finally {
+			EngineMetrics.exit();
+			event.end();
+
+			if (event.shouldCommit()) {
+				event.recorded = used != null;
+				event.bufferSize = plan.bufferSize;
+				event.prefetch = plan.prefetch;
+				event.commit();
+			}
+		}
+	}
+	
+	
+	/**
+	 * run the cascade over a pair of streams, in the configured format and execution.
+	 * 
+	 * @param command encrypt or decrypt
+	 * @param cascade cipher cascade
+	 * @param in input stream
+	 * @param out output stream
+	 * @throws IOException on error
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	private void run(final mode command, final CipherCascade cascade,
+			final InputStream in, final OutputStream out)
+					throws IOException, InvalidKeyException, NoSuchAlgorithmException,
+					NoSuchPaddingException, InvalidAlgorithmParameterException {
+
+		if (command.equals(mode.ENCRYPT)) {
+
+			if (encryptFormat.equals(format.CHUNKED)) {
+				new ChunkedEngine(plan.chunkSize, plan.pool()).encrypt(cascade, in, out);
+			} else if (encryptFormat.equals(format.SEEKABLE)) {
+				new SeekableEngine(SeekableEngine.DEFAULT_BLOCK_SIZE, plan.pool()).encrypt(cascade, in, out);
+			} else if (streamExecution.equals(execution.PIPELINED)) {
+				new PipelinedEngine().encrypt(cascade, in, out);
+			} else {
+				cascade.encrypt(in, out);
+			}
+
+		} else if (command.equals(mode.DECRYPT)) {
+
+			/*
+			 * the format is recognized from the header, so files in the
+			 * legacy single stream format can always be read.
+			 */
+			final PushbackInputStream pin = new PushbackInputStream(in, ChunkedEngine.MAGIC.length);
+
+			if (ChunkedEngine.isChunked(pin)) {
+				new ChunkedEngine(plan.chunkSize, plan.pool()).decrypt(cascade, pin, out);
+			} else if (SeekableEngine.isSeekable(pin)) {
+				new SeekableEngine(SeekableEngine.DEFAULT_BLOCK_SIZE, plan.pool()).decrypt(cascade, pin, out);
+			} else if (streamExecution.equals(execution.PIPELINED)) {
+				new PipelinedEngine().decrypt(cascade, pin, out);
+			} else {
+				cascade.decrypt(pin, out);
+			}
+		}
 	}
 }
@@ -0,0 +1,162 @@
+package RedBox;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * bounded lock-free ring buffer for exactly one producer thread and one consumer
+ * thread. The producer only writes tail and the consumer only writes head, so no
+ * compare-and-set is needed; ordered stores publish the slots. A consumer with
+ * nothing to do parks in take() until an offer or close() unparks it.
+ *
+ * @author mclark
+ *
+ * @param <T> type of element
+ */
+public final class RingBuffer<T> {
+
+	/*
+	 * element storage, length is a power of two
+	 */
+	private final Object[] slots;
+	private final int mask;
+
+	/*
+	 * next slot to read, written only by the consumer
+	 */
+	private final AtomicLong head = new AtomicLong();
+
+	/*
+	 * next slot to write, written only by the producer
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/*
+	 * consumer parked in take(), or null
+	 */
+	private volatile Thread waiter = null;
+
+	/*
+	 * set by close(), after which take() no longer waits
+	 */
+	private volatile boolean closed = false;
+
+
+	/**
+	 * create a ring buffer
+	 *
+	 * @param capacity minimum number of elements held, rounded up to a power of two
+	 */
+	public RingBuffer(final int capacity) {
+
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		}
+
+		final int size = Integer.highestOneBit(capacity - 1) << 1;
+		slots = new Object[Math.max(size, 1)];
+		mask = slots.length - 1;
+	}
+
+
+	/**
+	 * add an element. Only called by the producer.
+	 *
+	 * @param value element to add, not null
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(final T value) {
+
+		final long t = tail.get();
+		if (t - head.get() == slots.length) {
+			return false;
+		}
+
+		slots[(int) t & mask] = value;
+
+		// a full store, so a consumer that has just parked sees it or is unparked
+		tail.set(t + 1);
+
+		final Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+		return true;
+	}
+
+
+	/**
+	 * remove an element. Only called by the consumer.
+	 *
+	 * @return the oldest element, or null if the buffer is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll() {
+
+		final long h = head.get();
+		if (h == tail.get()) {
+			return null;
+		}
+
+		final int index = (int) h & mask;
+		final T value = (T) slots[index];
+		slots[index] = null;
+		head.lazySet(h + 1);
+		return value;
+	}
+
+
+	/**
+	 * remove an element, parking until one is offered. Only called by the consumer.
+	 * It can return null without an element, after close(), an interrupt or a spurious
+	 * wake up, so the caller checks why and calls again.
+	 *
+	 * @return the oldest element, or null
+	 */
+	public T take() {
+
+		T value = poll();
+		if (value != null) {
+			return value;
+		}
+
+		// the waiter is published before looking again, so an offer made meanwhile unparks it
+		waiter = Thread.currentThread();
+		try {
+			value = poll();
+			if (value == null && !closed) {
+				LockSupport.park(this);
+				value = poll();
+			}
+			return value;
+		} finally {
+			waiter = null;
+		}
+	}
+
+
+	/**
+	 * stop the consumer waiting: take() returns null once the buffer is empty. The
+	 * elements still in it can be taken. Called by either thread.
+	 */
+	public void close() {
+
+		closed = true;
+
+		final Thread w = waiter;
+		if (w != null) {
+			LockSupport.unpark(w);
+		}
+	}
+
+
+	/**
+	 * number of slots
+	 *
+	 * @return capacity of the buffer
+	 */
+	public int capacity() {
+		return slots.length;
+	}
+}
@@ -0,0 +1,213 @@
+package RedBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+
+/**
+ * the plain text of a seekable container, read at any position. Only the block holding
+ * the position is read and decrypted, and the last block decrypted is kept, so reads
+ * that follow each other decrypt every block once.
+ *
+ * @author mclark
+ *
+ */
+final class SeekableCipherChannel implements SeekableByteChannel {
+
+	private final CipherCascade cascade;
+	private final FileChannel channel;
+
+	/*
+	 * file position of the first block, and of the trailer after the last
+	 */
+	private final long start;
+	private final long end;
+
+	/*
+	 * plain text bytes per block, and encrypted bytes per block
+	 */
+	private final int blockSize;
+	private final long encryptedSize;
+
+	/*
+	 * bytes of plain text in the file
+	 */
+	private final long size;
+
+	private long position = 0;
+
+	/*
+	 * last block decrypted and its index
+	 */
+	private byte[] plain = null;
+	private long block = -1;
+
+
+	/**
+	 * create a channel over an open container
+	 *
+	 * @param cascade cipher cascade for the key
+	 * @param channel container file, closed with this channel
+	 * @param start file position of the first block
+	 * @param blockSize plain text bytes per block
+	 * @throws IOException if the trailer is missing or doesn't match the file length
+	 */
+	SeekableCipherChannel(final CipherCascade cascade, final FileChannel channel,
+			final long start, final int blockSize) throws IOException {
+
+		this.cascade = cascade;
+		this.channel = channel;
+		this.start = start;
+		this.blockSize = blockSize;
+		this.encryptedSize = blockSize + cascade.overhead();
+
+		this.end = channel.size() - SeekableEngine.TRAILER_SIZE;
+
+		if (end < start) {
+			throw new IOException("truncated seekable container");
+		}
+
+		final ByteBuffer trailer = ByteBuffer.allocate(SeekableEngine.TRAILER_SIZE);
+		while (trailer.hasRemaining()) {
+			if (channel.read(trailer, end + trailer.position()) < 0) {
+				throw new IOException("truncated seekable container");
+			}
+		}
+		trailer.flip();
+		size = SeekableEngine.trailer(trailer);
+
+		// the blocks must be exactly those that hold the length in the trailer
+		final long blocks = size / blockSize + (size % blockSize == 0 ? 0 : 1);
+		if (end - start != size + blocks * cascade.overhead()) {
+			throw new IOException("truncated seekable container");
+		}
+	}
+
+
+	public int read(final ByteBuffer dst) throws IOException {
+
+		checkOpen();
+
+		if (position >= size) {
+			return -1;
+		}
+
+		int total = 0;
+
+		while (dst.hasRemaining() && position < size) {
+
+			load(position / blockSize);
+
+			final int offset = (int) (position % blockSize);
+			final int len = Math.min(dst.remaining(), plain.length - offset);
+
+			dst.put(plain, offset, len);
+			position += len;
+			total += len;
+		}
+
+		return total;
+	}
+
+
+	public int write(final ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+
+	public long position() throws IOException {
+		checkOpen();
+		return position;
+	}
+
+
+	public SeekableByteChannel position(final long newPosition) throws IOException {
+
+		checkOpen();
+
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position");
+		}
+
+		position = newPosition;
+		return this;
+	}
+
+
+	public long size() throws IOException {
+		checkOpen();
+		return size;
+	}
+
+
+	public SeekableByteChannel truncate(final long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+
+	public void close() throws IOException {
+		plain = null;
+		channel.close();
+	}
+
+
+	/**
+	 * decrypt a block, unless it is the one already decrypted
+	 *
+	 * @param index block index
+	 * @throws IOException on error or a damaged block
+	 */
+	private void load(final long index) throws IOException {
+
+		if (index == block) {
+			return;
+		}
+
+		final long offset = start + index * encryptedSize;
+		final int len = (int) Math.min(encryptedSize, end - offset);
+		final ByteBuffer encrypted = ByteBuffer.allocate(len);
+
+		while (encrypted.hasRemaining()) {
+			if (channel.read(encrypted, offset + encrypted.position()) < 0) {
+				throw new IOException("truncated seekable container");
+			}
+		}
+
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream(blockSize);
+		try {
+			cascade.decrypt(new ByteArrayInputStream(encrypted.array()), bos, false);
+		} catch (GeneralSecurityException e) {
+			throw new IOException(e);
+		}
+
+		plain = bos.toByteArray();
+		block = index;
+
+		if (plain.length != len - cascade.overhead()) {
+			block = -1;
+			throw new IOException("damaged block " + index);
+		}
+	}
+
+
+	/**
+	 * @throws ClosedChannelException if the channel is closed
+	 */
+	private void checkOpen() throws ClosedChannelException {
+		if (!channel.isOpen()) {
+			throw new ClosedChannelException();
+		}
+	}
+}
@@ -0,0 +1,465 @@
+package RedBox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+
+/**
+ * seekable container format. Like the chunked format the input is split into blocks, each
+ * encrypted as its own cascade stream with its own initialization vectors and RandomCipher
+ * nonce, but there are no lengths between the blocks: every block except the last is
+ * exactly the block size plus the cascade overhead. The keystream and IVs of a block are
+ * in the block itself and its place in the file follows from its index, so any block can
+ * be read and decrypted without the ones before it. A trailer after the last block holds
+ * the plain text length, so a container cut short, even between two blocks, is found.
+ *
+ * <pre>
+ *   MAGIC (8 bytes) | block size (int)
+ *   { encrypted block } ...
+ *   END (8 bytes) | plain text length (long)
+ * </pre>
+ *
+ * open() gives the plain text of a file as a read only SeekableByteChannel.
+ *
+ * @author mclark
+ *
+ */
+public class SeekableEngine {
+
+	/*
+	 * marks the start of a seekable container
+	 */
+	static final byte[] MAGIC = "RedBoxS1".getBytes(StandardCharsets.US_ASCII);
+
+	/*
+	 * bytes from the magic number to the first block
+	 */
+	static final int HEADER_SIZE = MAGIC.length + 4;
+
+	/*
+	 * marks the trailer after the last block
+	 */
+	static final byte[] END = "RedBoxSE".getBytes(StandardCharsets.US_ASCII);
+
+	/*
+	 * bytes from the end of the last block to the end of the container
+	 */
+	static final int TRAILER_SIZE = END.length + 8;
+
+	/*
+	 * default plain text bytes per block
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024*1024;
+
+	/*
+	 * largest block accepted, so a damaged header can't cause a huge allocation
+	 */
+	private static final int MAX_BLOCK_SIZE = 1024*1024*64;
+
+	/*
+	 * plain text bytes per block when encrypting
+	 */
+	private final int blockSize;
+
+	/*
+	 * pool used to process the blocks
+	 */
+	private final ForkJoinPool pool;
+
+
+	/**
+	 * create an engine with the default block size using the common pool
+	 */
+	public SeekableEngine() {
+		this(DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+	}
+
+
+	/**
+	 * create an engine
+	 *
+	 * @param blockSize plain text bytes per block
+	 * @param pool pool that processes the blocks
+	 */
+	public SeekableEngine(final int blockSize, final ForkJoinPool pool) {
+
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("block size out of range: " + blockSize);
+		}
+
+		this.blockSize = blockSize;
+		this.pool = pool;
+	}
+
+
+	/**
+	 * open an encrypted file for reading at any position. A key derivation header
+	 * before the container is used for the key, as when decrypting.
+	 *
+	 * @param file seekable container
+	 * @param KEY encryption key
+	 * @return plain text of the file, read only
+	 * @throws IOException if the file is not a seekable container or can't be read
+	 */
+	public static SeekableByteChannel open(final Path file, final EncryptionKey KEY) throws IOException {
+
+		final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+
+		try {
+			final LaneKeyDerivation used = LaneKeyDerivation.read(channel);
+			final long start = used == null ? 0 : LaneKeyDerivation.HEADER_SIZE;
+
+			if (!MappedFileStreams.startsWith(channel, start, MAGIC)) {
+				throw new IOException("not a seekable container: " + file);
+			}
+
+			return open(channel, start, new CipherCascade(used == null ? KEY : KEY.withDerivation(used)));
+
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+
+	/**
+	 * open a seekable container with a cascade already derived
+	 *
+	 * @param channel open file, closed with the container
+	 * @param start file position of the magic number
+	 * @param cascade cipher cascade
+	 * @return plain text of the container, read only
+	 * @throws IOException if the container can't be read
+	 */
+	static SeekableCipherChannel open(final FileChannel channel, final long start, final CipherCascade cascade)
+			throws IOException {
+
+		if (!MappedFileStreams.startsWith(channel, start, MAGIC)) {
+			throw new IOException("not a seekable container");
+		}
+
+		final ByteBuffer size = ByteBuffer.allocate(4);
+		while (size.hasRemaining() && channel.read(size, start + MAGIC.length + size.position()) > 0) {
+			// read the block size
+		}
+		size.flip();
+
+		if (size.remaining() < 4) {
+			throw new IOException("truncated seekable container");
+		}
+
+		return new SeekableCipherChannel(cascade, channel, start + HEADER_SIZE, blockSize(size.getInt()));
+	}
+
+
+	/**
+	 * number of blocks in flight. Bounds memory use to about twice this many blocks.
+	 *
+	 * @return blocks to keep in flight
+	 */
+	private int window() {
+		return pool.getParallelism() * 2;
+	}
+
+
+	/**
+	 * check for the seekable format magic number at the start of a stream. If the stream
+	 * is not seekable the bytes read are pushed back.
+	 *
+	 * @param in stream with room to push back MAGIC.length bytes
+	 * @return true if the stream is a seekable container, with the magic number consumed.
+	 * @throws IOException on error
+	 */
+	static boolean isSeekable(final PushbackInputStream in) throws IOException {
+
+		final byte[] head = new byte[MAGIC.length];
+		final int len = ChunkedEngine.readFully(in, head, head.length);
+
+		if (len == head.length && Arrays.equals(head, MAGIC)) {
+			return true;
+		}
+
+		if (len > 0) {
+			in.unread(head, 0, len);
+		}
+		return false;
+	}
+
+
+	/**
+	 * encrypt a stream into a seekable container
+	 *
+	 * @param cascade cipher cascade
+	 * @param in plain text
+	 * @param out container
+	 * @throws IOException on error
+	 */
+	void encrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final DataOutputStream dos = new DataOutputStream(out);
+		final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		dos.write(MAGIC);
+		dos.writeInt(blockSize);
+
+		long length = 0;
+
+		try {
+			while (true) {
+				final byte[] block = new byte[blockSize];
+				final int len = ChunkedEngine.readFully(in, block, blockSize);
+
+				if (len <= 0) {
+					break;
+				}
+				length += len;
+
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						final ByteArrayOutputStream bos = new ByteArrayOutputStream(len + 1024);
+						// the blocks already keep every processor busy, so no prefetch thread
+						cascade.encrypt(new ByteArrayInputStream(block, 0, len), bos, false);
+						return bos.toByteArray();
+					}
+				}));
+
+				if (pending.size() >= window()) {
+					dos.write(ChunkedEngine.result(pending.remove()));
+				}
+
+				if (len < blockSize) {
+					break;
+				}
+			}
+
+			while (!pending.isEmpty()) {
+				dos.write(ChunkedEngine.result(pending.remove()));
+			}
+			dos.write(END);
+			dos.writeLong(length);
+			dos.flush();
+
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			try { in.close(); } catch (Exception e) {};
+			try { out.close(); } catch (Exception e) {};
+		}
+	}
+
+
+	/**
+	 * an output stream writing a seekable container. Each block is encrypted on the
+	 * writing thread as it fills, so the plain text doesn't have to be an input stream.
+	 * Closing the stream writes the last block and the trailer, and closes the output.
+	 *
+	 * @param cascade cipher cascade
+	 * @param out container
+	 * @return plain text stream
+	 * @throws IOException on error writing the header
+	 */
+	OutputStream output(final CipherCascade cascade, final OutputStream out) throws IOException {
+
+		final DataOutputStream dos = new DataOutputStream(out);
+		dos.write(MAGIC);
+		dos.writeInt(blockSize);
+
+		return new OutputStream() {
+
+			private final byte[] block = new byte[blockSize];
+			private int count = 0;
+			private long length = 0;
+			private boolean closed = false;
+
+			public void write(final int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(final byte[] b, int off, int len) throws IOException {
+
+				while (len > 0) {
+					final int n = Math.min(len, blockSize - count);
+					System.arraycopy(b, off, block, count, n);
+					count += n;
+					length += n;
+					off += n;
+					len -= n;
+
+					if (count == blockSize) {
+						encryptBlock();
+					}
+				}
+			}
+
+			public void close() throws IOException {
+
+				if (closed) {
+					return;
+				}
+				closed = true;
+
+				try {
+					if (count > 0) {
+						encryptBlock();
+					}
+					dos.write(END);
+					dos.writeLong(length);
+					dos.flush();
+				} finally {
+					out.close();
+				}
+			}
+
+			private void encryptBlock() throws IOException {
+				final ByteArrayOutputStream bos = new ByteArrayOutputStream(count + 1024);
+				cascade.encrypt(new ByteArrayInputStream(block, 0, count), bos, false);
+				dos.write(bos.toByteArray());
+				count = 0;
+			}
+		};
+	}
+
+
+	/**
+	 * decrypt a whole seekable container. The magic number must already have been read.
+	 *
+	 * @param cascade cipher cascade
+	 * @param in container, positioned after the magic number
+	 * @param out plain text
+	 * @throws IOException on error or a truncated container
+	 */
+	void decrypt(final CipherCascade cascade, final InputStream in, final OutputStream out)
+			throws IOException {
+
+		final DataInputStream dis = new DataInputStream(in);
+		final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+		try {
+			final int size = blockSize(dis.readInt());
+			final int encrypted = (int) (size + cascade.overhead());
+
+			/*
+			 * the trailer can't be told from a block until the input ends, so each read
+			 * takes a trailer more than a block and puts the extra bytes back
+			 */
+			final PushbackInputStream blocks = new PushbackInputStream(dis, TRAILER_SIZE);
+			long length = 0;
+			long expected = -1;
+
+			while (true) {
+				final byte[] block = new byte[encrypted + TRAILER_SIZE];
+				int len = ChunkedEngine.readFully(blocks, block, block.length);
+
+				if (len == block.length) {
+					blocks.unread(block, encrypted, TRAILER_SIZE);
+					len = encrypted;
+				} else if (len < TRAILER_SIZE) {
+					throw new IOException("truncated seekable container");
+				} else {
+					len -= TRAILER_SIZE;
+					expected = trailer(ByteBuffer.wrap(block, len, TRAILER_SIZE));
+				}
+
+				if (len == 0) {
+					break;
+				} else if (len <= cascade.overhead()) {
+					throw new IOException("truncated seekable container");
+				}
+
+				length += len - cascade.overhead();
+				final int blockLength = len;
+
+				pending.add(pool.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						final ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+						cascade.decrypt(new ByteArrayInputStream(block, 0, blockLength), bos, false);
+						return bos.toByteArray();
+					}
+				}));
+
+				if (pending.size() >= window()) {
+					out.write(ChunkedEngine.result(pending.remove()));
+				}
+
+				if (len < encrypted) {
+					break;
+				}
+			}
+
+			if (length != expected) {
+				throw new IOException("truncated seekable container");
+			}
+
+			while (!pending.isEmpty()) {
+				out.write(ChunkedEngine.result(pending.remove()));
+			}
+			out.flush();
+
+		} catch (EOFException e) {
+			throw new IOException("truncated seekable container", e);
+
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			try { in.close(); } catch (Exception e) {};
+			try { out.close(); } catch (Exception e) {};
+		}
+	}
+
+
+	/**
+	 * read a trailer
+	 *
+	 * @param trailer the bytes after the last block
+	 * @return plain text length
+	 * @throws IOException if it isn't a trailer, as when the container was cut short
+	 */
+	static long trailer(final ByteBuffer trailer) throws IOException {
+
+		final byte[] end = new byte[END.length];
+		trailer.get(end);
+		final long length = trailer.getLong();
+
+		if (!Arrays.equals(end, END) || length < 0) {
+			throw new IOException("truncated seekable container");
+		}
+		return length;
+	}
+
+
+	/**
+	 * check a block size read from a header
+	 *
+	 * @param size block size
+	 * @return the block size
+	 * @throws IOException if it is out of range
+	 */
+	private static int blockSize(final int size) throws IOException {
+
+		if (size < 1 || size > MAX_BLOCK_SIZE) {
+			throw new IOException("invalid block size " + size);
+		}
+		return size;
+	}
+}
@@ -0,0 +1,128 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * a series of BufferCiphers applied one after the other. The input is processed in slices,
+ * and the output of each stage is held in one of two direct scratch buffers used in turn,
+ * so memory is bounded no matter how many stages there are.
+ *
+ * @author mclark
+ *
+ */
+public class BufferChain implements BufferCipher {
+
+	/*
+	 * input bytes processed in one pass through the stages
+	 */
+	private static final int SLICE = 1024*64;
+
+	/*
+	 * stages, in processing order
+	 */
+	private final BufferCipher[] stages;
+
+	/*
+	 * output of the stages in turn
+	 */
+	private final ByteBuffer[] scratch = new ByteBuffer[2];
+
+
+	/**
+	 * create a chain
+	 *
+	 * @param stages stages in processing order
+	 */
+	public BufferChain(final BufferCipher... stages) {
+
+		if (stages.length == 0) {
+			throw new IllegalArgumentException("no stages");
+		}
+
+		this.stages = stages.clone();
+
+		int size = SLICE;
+		int largest = 0;
+		for (int i = 0; i < stages.length - 1; i++) {
+			size = stages[i].getOutputSize(size);
+			largest = Math.max(largest, size);
+		}
+
+		if (largest > 0) {
+			scratch[0] = ByteBuffer.allocateDirect(largest);
+			scratch[1] = ByteBuffer.allocateDirect(largest);
+		}
+	}
+
+
+	public void update(final ByteBuffer in, final ByteBuffer out) {
+		process(in, out, false);
+	}
+
+
+	public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+		process(in, out, true);
+	}
+
+
+	public int getOutputSize(final int inputLen) {
+
+		int size = inputLen;
+		for (BufferCipher stage : stages) {
+			size = stage.getOutputSize(size);
+		}
+		return size;
+	}
+
+
+	public void close() {
+		for (BufferCipher stage : stages) {
+			stage.close();
+		}
+	}
+
+
+	/**
+	 * run the input through every stage a slice at a time
+	 *
+	 * @param in input
+	 * @param out output
+	 * @param last true to finish every stage after the last slice
+	 */
+	private void process(final ByteBuffer in, final ByteBuffer out, final boolean last) {
+
+		do {
+			final int len = Math.min(in.remaining(), SLICE);
+			final boolean finish = last && len == in.remaining();
+
+			final ByteBuffer slice = in.duplicate();
+			slice.limit(slice.position() + len);
+			in.position(in.position() + len);
+
+			ByteBuffer src = slice;
+
+			for (int i = 0; i < stages.length; i++) {
+
+				final boolean end = i == stages.length - 1;
+				final ByteBuffer dst = end ? out : scratch[i & 1];
+
+				if (!end) {
+					dst.clear();
+				}
+
+				if (finish) {
+					stages[i].doFinal(src, dst);
+				} else {
+					stages[i].update(src, dst);
+				}
+
+				if (!end) {
+					dst.flip();
+					src = dst;
+				}
+			}
+
+		} while (in.hasRemaining());
+	}
+}
@@ -0,0 +1,51 @@
+package cipher;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * a transform from one ByteBuffer to another, in the manner of Cipher.update(ByteBuffer, ByteBuffer).
+ * Works with heap or direct buffers, so data can move from a channel read, through every layer
+ * of encryption, to a channel write without being copied to the heap.
+ *
+ * Each call consumes all of the input. The output must have room for getOutputSize() bytes
+ * or a BufferOverflowException is thrown.
+ *
+ * @author mclark
+ *
+ */
+public interface BufferCipher {
+
+	/**
+	 * transform the bytes remaining in the input, writing to the output. Some bytes
+	 * may be held back until more input arrives or doFinal is called.
+	 *
+	 * @param in input, read to its limit
+	 * @param out output
+	 */
+	void update(ByteBuffer in, ByteBuffer out);
+
+	/**
+	 * transform the last of the input and write any bytes held back.
+	 *
+	 * @param in input, read to its limit
+	 * @param out output
+	 */
+	void doFinal(ByteBuffer in, ByteBuffer out);
+
+	/**
+	 * largest number of bytes a call can write. It may not grow over time, so it
+	 * can be used to size buffers once.
+	 *
+	 * @param inputLen number of input bytes
+	 * @return bytes of room needed in the output
+	 */
+	int getOutputSize(int inputLen);
+
+	/**
+	 * release what the transform holds, such as a thread making keystream ahead. Called
+	 * when the transform is finished with, whether or not doFinal was reached; calling
+	 * it again does nothing.
+	 */
+	void close();
+}
@@ -0,0 +1,135 @@
+package cipher;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * per-thread pool of Cipher objects that have already been set up with a key. A cipher
+ * is taken out of the pool while a stream uses it and put back when the stream is
+ * finished, so a new stream with the same key only needs the provider lookup skipped
+ * and an init with its new initialization vector. Ciphers that are never put back are
+ * simply garbage collected.
+ *
+ * @author mclark
+ *
+ */
+final class CipherPool {
+
+	/*
+	 * idle ciphers kept for each key
+	 */
+	private static final int MAX_IDLE = 4;
+
+	/*
+	 * keys kept for each thread. The pool is emptied when full.
+	 */
+	private static final int MAX_SLOTS = 256;
+
+	private static final ThreadLocal<HashMap<Slot, ArrayDeque<Cipher>>> pools =
+			new ThreadLocal<HashMap<Slot, ArrayDeque<Cipher>>>() {
+				protected HashMap<Slot, ArrayDeque<Cipher>> initialValue() {
+					return new HashMap<Slot, ArrayDeque<Cipher>>();
+				}
+			};
+
+
+	private CipherPool() {
+	}
+
+
+	/**
+	 * take a cipher from the pool, or create one, and initialize it
+	 *
+	 * @param slot cipher specification, mode and key
+	 * @param iv initialization vector
+	 * @return initialized cipher, which belongs to the caller until released
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 */
+	static Cipher get(final Slot slot, final byte[] iv)
+			throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+
+		final ArrayDeque<Cipher> idle = pools.get().get(slot);
+		Cipher cipher = idle == null ? null : idle.poll();
+
+		if (cipher == null) {
+			cipher = Cipher.getInstance(slot.spec);
+		}
+
+		cipher.init(slot.opmode, slot.key, new IvParameterSpec(iv));
+		return cipher;
+	}
+
+
+	/**
+	 * return a cipher to the pool of the calling thread. The cipher must not be used
+	 * by the caller afterwards.
+	 *
+	 * @param slot cipher specification, mode and key the cipher was taken for
+	 * @param cipher cipher
+	 */
+	static void release(final Slot slot, final Cipher cipher) {
+
+		final HashMap<Slot, ArrayDeque<Cipher>> pool = pools.get();
+		ArrayDeque<Cipher> idle = pool.get(slot);
+
+		if (idle == null) {
+			if (pool.size() >= MAX_SLOTS) {
+				pool.clear();
+			}
+			idle = new ArrayDeque<Cipher>(MAX_IDLE);
+			pool.put(slot, idle);
+		}
+
+		if (idle.size() < MAX_IDLE) {
+			idle.push(cipher);
+		}
+	}
+
+
+	/**
+	 * what a pooled cipher was set up for: the cipher specification, the mode and the key
+	 */
+	static final class Slot {
+
+		private final String spec;
+		private final int opmode;
+		private final SecretKeySpec key;
+
+		/**
+		 * create a slot
+		 *
+		 * @param spec cipher specification, for example AES/CFB/NoPadding
+		 * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+		 * @param key key
+		 */
+		Slot(final String spec, final int opmode, final SecretKeySpec key) {
+			this.spec = spec;
+			this.opmode = opmode;
+			this.key = key;
+		}
+
+		public boolean equals(final Object o) {
+			if (!(o instanceof Slot)) {
+				return false;
+			}
+			final Slot s = (Slot) o;
+			return opmode == s.opmode && spec.equals(s.spec) && key.equals(s.key);
+		}
+
+		public int hashCode() {
+			return (spec.hashCode() * 31 + opmode) * 31 + key.hashCode();
+		}
+	}
+}
@@ -1,18 +1,21 @@
 package cipher;
 
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
 
 import RedBox.EncryptionKey;
@@ -49,10 +52,15 @@ public class CipherStream {
 	 */
 	private transient EncryptionKey KEY;
 	
+	/*
+	 * default encryption buffer size for input/output streams
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 4096;
+	
 	/*
 	 * encryption buffer size for input/output streams
 	 */
-	private final int BUFFER_SIZE=4096;
+	private final int BUFFER_SIZE;
 	
 	/**
 	 * constructor that creates the stream, reads from standard input and writes to standard output
@@ -63,9 +71,45 @@ public class CipherStream {
 	 * @throws IOException on any IO Exception key. 
 	 */
 	public CipherStream(String CipherSpec, int keylen, final EncryptionKey key) throws IOException {
+		this(CipherSpec, keylen, key, DEFAULT_BUFFER_SIZE);
+	}
+	
+	/**
+	 * constructor with a buffer size for the streams
+	 * 
+	 * @param CipherSpec specification of the cipher, for example AES/CFB/NoPadding
+	 * @param keylen key length of one round
+	 * @param key encryption key
+	 * @param bufferSize bytes processed at a time by the streams
+	 * @throws IOException on any IO Exception key. 
+	 */
+	public CipherStream(String CipherSpec, int keylen, final EncryptionKey key, final int bufferSize) throws IOException {
 		KEY = key;
 		CIPHERSPEC = CipherSpec;
 		KEYLEN = keylen;
+		BUFFER_SIZE = bufferSize;
+	}
+
+	
+	/**
+	 * number of bytes of initialization vectors at the start of a stream, one
+	 * for each round of encryption.
+	 * 
+	 * @return size of the stream header in bytes
+	 */
+	public final int headerSize() {
+		return Math.max(1, (KEY.size() + KEYLEN - 1) / KEYLEN) * KEYLEN;
+	}
+
+	
+	/**
+	 * size of the initialization vector of each round, which is also the block
+	 * size of the feedback mode
+	 * 
+	 * @return bytes in each initialization vector
+	 */
+	public final int ivSize() {
+		return KEYLEN;
 	}
 
 	
@@ -73,7 +117,7 @@ public class CipherStream {
 	 * encrypt standard input and write encrypted bytes to standard output
 	 * 
 	 * @param key encryption key, unlimited length
-	 * @throws IOException
+	 * @throws IOException if reading, a round or writing fails
 	 */
 	public final void encrypt(final InputStream input, final OutputStream output) throws IOException {
 
@@ -85,9 +129,12 @@ public class CipherStream {
 			while ((bytesRead = input.read(buffer)) > 0) {
 				os.write(buffer, 0, bytesRead);
 			}
+			// closing writes the last block, so it fails the encryption if it fails
+			os.close();
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
-			
+			throw new IOException(e);
 		} finally {
 			// close streams
 			try { os.close(); } catch (Exception e) {};
@@ -102,7 +149,7 @@ public class CipherStream {
 	 * read encrypted text from standard input and write decrypted text to standard output
 	 * @param key encryption key, unlimited length
 	 * 
-	 * @throws IOException
+	 * @throws IOException if reading, a round or writing fails
 	 * @throws InvalidAlgorithmParameterException 
 	 * @throws NoSuchPaddingException 
 	 * @throws NoSuchAlgorithmException 
@@ -120,11 +167,15 @@ public class CipherStream {
 			while ((bytesRead = is.read(buffer)) > 0) {
 				output.write(buffer, 0, bytesRead);
 			}
+			output.close();
 
+		} catch (IOException e) {
+			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
+			throw new IOException(e);
 		} finally {
 			// close the streams
+			try { is.close(); } catch (Exception e) {};
 			try { output.close(); } catch (Exception e) {};
 			try { input.close(); } catch (Exception e) {};
 
@@ -135,11 +186,26 @@ public class CipherStream {
 
 	
 	/**
-	 * get the cipher for encryption.  This method sets the various parameters.
-	 * The key and initialization vector are given as arguments, 
+	 * the pool slot for a mode and key segment
 	 * 
 	 * @param opmode
 	 * @param keyValue
+	 * @return slot identifying ciphers with this key
+	 */
+	private final CipherPool.Slot slot(final int opmode, final byte[] keyValue) {
+		
+		final SecretKeySpec key = new SecretKeySpec(keyValue, 0, KEYLEN, CIPHERSPEC.substring(0, CIPHERSPEC.indexOf("/")));
+		return new CipherPool.Slot(CIPHERSPEC, opmode, key);
+	}
+	
+	
+	/**
+	 * get the cipher for encryption.  This method sets the various parameters.
+	 * The cipher comes from the pool of the calling thread when one with the same
+	 * key is free, so only the initialization vector has to be set.
+	 * 
+	 * @param slot mode and key
+	 * @param initializationVector
 	 * @return Cipher object ready for encryption
 	 * @throws NoSuchPaddingException 
 	 * @throws NoSuchAlgorithmException 
@@ -147,15 +213,10 @@ public class CipherStream {
 	 * @throws InvalidKeyException 
 	 * 
 	 */
-	private final Cipher getCipher(final int opmode, final byte[] keyValue, final byte[] initializationVector) 
+	private final Cipher getCipher(final CipherPool.Slot slot, final byte[] initializationVector) 
 	throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException  {
 
-		final IvParameterSpec ivp = new IvParameterSpec(initializationVector);
-		final Cipher result = Cipher.getInstance(CIPHERSPEC);
-		final SecretKey key = new SecretKeySpec(keyValue, 0, KEYLEN, CIPHERSPEC.substring(0, CIPHERSPEC.indexOf("/")));
-		result.init(opmode, key, ivp);
-
-		return result;
+		return CipherPool.get(slot, initializationVector);
 	}
 
 	
@@ -169,7 +230,7 @@ public class CipherStream {
 	 * @param stream encrypted InpuStream to decrypt
 	 * @param key encryption key
 	 * @return decrypted InputStream
-	 * @throws IOException 
+	 * @throws IOException if the stream ends inside the initialization vectors
 	 * @throws InvalidAlgorithmParameterException 
 	 * @throws NoSuchPaddingException 
 	 * @throws NoSuchAlgorithmException 
@@ -179,32 +240,31 @@ public class CipherStream {
 	public final InputStream getCipherInputStream(final InputStream stream) 
 			throws IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException  {
 
-		InputStream cis = stream;
+		final int rounds = headerSize() / KEYLEN;
+		final CipherPool.Slot[] slots = new CipherPool.Slot[rounds];
+		final Cipher[] ciphers = new Cipher[rounds];
 		final byte[] iv = new byte[KEYLEN];
 
-		/*
-		 * read the randomly created initialization vector so that it is unique to 
-		 * this round.
-		 */
-		stream.read(iv);
-		
-		/* make new key array padded to be a multiple of key length */
-		cis = new CipherInputStream(cis, getCipher(Cipher.DECRYPT_MODE,
-				KEY.keySegment(0,KEYLEN), iv));
-
-		for (int i = KEYLEN; i < KEY.size(); i+= KEYLEN) {
+		for (int i = 0; i < rounds; i++) {
 			/*
-			 * read a new initialization vector for each round.
+			 * read the randomly created initialization vector so that it is unique to 
+			 * this round. A stream that ends inside the vectors is a truncated file.
 			 */
-			final byte[] key = KEY.keySegment(i, KEYLEN);			
-			stream.read(iv);
-	
-			cis = new CipherInputStream(cis,
-					getCipher(Cipher.DECRYPT_MODE, key, iv));
-
+			int read = 0;
+			while (read < iv.length) {
+				final int n = stream.read(iv, read, iv.length - read);
+				if (n < 0) {
+					throw new EOFException("input ended inside the initialization vectors");
+				}
+				read += n;
+			}
+			
+			/* make new key array padded to be a multiple of key length */
+			slots[i] = slot(Cipher.DECRYPT_MODE, KEY.keySegment(i * KEYLEN, KEYLEN));
+			ciphers[i] = getCipher(slots[i], iv);
 		}
 		
-		return cis;
+		return new FusedCipherInputStream(stream, new Rounds(slots, ciphers, BUFFER_SIZE));
 	}
 	
 
@@ -221,41 +281,541 @@ public class CipherStream {
 	 */
 	public final OutputStream getCipherOutputStream(final OutputStream stream)  {
 		
+		final int rounds = headerSize() / KEYLEN;
+		final CipherPool.Slot[] slots = new CipherPool.Slot[rounds];
+		final Cipher[] ciphers = new Cipher[rounds];
 		OutputStream cos = stream;
 
-		/*
-		 * create a unique initialization vector with random bytes not related to
-		 * the data or the keys. This ensures that the same file encrypted with the
-		 * same key twice will have two different results.
-		 */
-		byte[] iv = seeds.generateSeed(KEYLEN);
-	
 		try {
-			// write the unique IV to the encrypted file.
-			stream.write(iv);
-
-			cos = new CipherOutputStream(cos, getCipher(Cipher.ENCRYPT_MODE,
-					KEY.keySegment(0, KEYLEN), iv));
-			
-			for (int i = KEYLEN; i < KEY.size(); i+= KEYLEN) {
+			for (int i = 0; i < rounds; i++) {
 				/*
-				 * each round gets a new initializaiton vector, as well as a new key
-				 * while the outer IV is in 'plain bytes' the others are encrypted
+				 * create a unique initialization vector with random bytes not related to
+				 * the data or the keys. This ensures that the same file encrypted with the
+				 * same key twice will have two different results. Each round gets a new 
+				 * initialization vector as well as a new key.
 				 */
-				final byte[] key = KEY.keySegment(i,KEYLEN);
+				final byte[] iv = seeds.generateSeed(KEYLEN);
 				
-				iv = seeds.generateSeed(KEYLEN);
+				// write the unique IV to the encrypted file.
 				stream.write(iv);
 				
-				cos = new CipherOutputStream(cos, 
-						getCipher(Cipher.ENCRYPT_MODE, key, iv));
-
+				/*
+				 * the rounds used to be nested streams, each wrapped around the one
+				 * before, so the last round sees the data first.
+				 */
+				slots[rounds - 1 - i] = slot(Cipher.ENCRYPT_MODE, KEY.keySegment(i * KEYLEN, KEYLEN));
+				ciphers[rounds - 1 - i] = getCipher(slots[rounds - 1 - i], iv);
 			}
 			
+			cos = new FusedCipherOutputStream(stream, new Rounds(slots, ciphers, BUFFER_SIZE));
+			
 		} catch (Exception e) {
 			System.err.println("getCipherOutputStream: " + e);
 		}
 		
 		return cos;
 	}
+	
+	
+	/**
+	 * creates a ByteBuffer encryptor equivalent to getCipherOutputStream. The first
+	 * bytes written are the initialization vectors, then the encrypted input. Each round
+	 * of encryption is one Cipher and the bytes are moved with Cipher.update(ByteBuffer, ByteBuffer),
+	 * so direct buffers are never copied to the heap by this class.
+	 * 
+	 * @return encryptor
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	public final BufferCipher getBufferEncryptor() 
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		
+		final ByteBuffer header = ByteBuffer.allocate(headerSize());
+		final BufferCipher[] layers = new BufferCipher[header.capacity() / KEYLEN];
+		
+		/*
+		 * the stream version wraps each round around the previous one, so the
+		 * last round sees the data first.
+		 */
+		for (int i = 0; i < layers.length; i++) {
+			final byte[] iv = seeds.generateSeed(KEYLEN);
+			header.put(iv);
+			final CipherPool.Slot slot = slot(Cipher.ENCRYPT_MODE, KEY.keySegment(i * KEYLEN, KEYLEN));
+			layers[layers.length - 1 - i] = new CipherLayer(slot, getCipher(slot, iv));
+		}
+		
+		header.flip();
+		
+		final BufferCipher chain = new BufferChain(layers);
+		
+		return new BufferCipher() {
+			
+			public void update(final ByteBuffer in, final ByteBuffer out) {
+				out.put(header);
+				chain.update(in, out);
+			}
+			
+			public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+				out.put(header);
+				chain.doFinal(in, out);
+			}
+			
+			public int getOutputSize(final int inputLen) {
+				return header.remaining() + chain.getOutputSize(inputLen);
+			}
+			
+			public void close() {
+				chain.close();
+			}
+		};
+	}
+	
+	
+	/**
+	 * creates a ByteBuffer decryptor equivalent to getCipherInputStream. The initialization
+	 * vectors are taken from the start of the input, then the rest is decrypted.
+	 * 
+	 * @return decryptor
+	 */
+	public final BufferCipher getBufferDecryptor() {
+		
+		final int rounds = headerSize() / KEYLEN;
+		
+		return new BufferCipher() {
+			
+			private final ByteBuffer header = ByteBuffer.allocate(headerSize());
+			private BufferCipher chain = null;
+			
+			/**
+			 * collect the initialization vectors and create the rounds once all are read
+			 * 
+			 * @param in input
+			 * @return true once the rounds are ready
+			 */
+			private boolean ready(final ByteBuffer in) {
+				
+				if (chain != null) {
+					return true;
+				}
+				
+				while (header.hasRemaining() && in.hasRemaining()) {
+					header.put(in.get());
+				}
+				
+				if (header.hasRemaining()) {
+					return false;
+				}
+				
+				header.flip();
+				final BufferCipher[] layers = new BufferCipher[rounds];
+				final byte[] iv = new byte[KEYLEN];
+				
+				try {
+					for (int i = 0; i < rounds; i++) {
+						header.get(iv);
+						final CipherPool.Slot slot = slot(Cipher.DECRYPT_MODE, KEY.keySegment(i * KEYLEN, KEYLEN));
+						layers[i] = new CipherLayer(slot, getCipher(slot, iv));
+					}
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+				
+				chain = new BufferChain(layers);
+				return true;
+			}
+			
+			public void update(final ByteBuffer in, final ByteBuffer out) {
+				if (ready(in)) {
+					chain.update(in, out);
+				}
+			}
+			
+			public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+				if (!ready(in)) {
+					throw new IllegalStateException("input ended inside the initialization vectors");
+				}
+				chain.doFinal(in, out);
+			}
+			
+			public int getOutputSize(final int inputLen) {
+				return inputLen + rounds * KEYLEN;
+			}
+			
+			public void close() {
+				if (chain != null) {
+					chain.close();
+				}
+			}
+		};
+	}
+	
+	
+	/**
+	 * creates a ByteBuffer decryptor that starts part way through a stream, after the
+	 * initialization vectors. Each round starts from the feedback register given for it,
+	 * the last block of that round's input before the starting point, or its IV at the
+	 * start. The registers are kept current: whenever the input read so far is a whole
+	 * number of blocks they hold what is needed to start again from that point.
+	 * 
+	 * @param registers one block for each round, in the order of the header, updated in place
+	 * @return decryptor
+	 * @throws InvalidAlgorithmParameterException 
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 */
+	public final BufferCipher getBufferDecryptor(final byte[][] registers) 
+			throws InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException {
+		
+		final int rounds = headerSize() / KEYLEN;
+		if (registers.length != rounds) {
+			throw new IllegalArgumentException("expected " + rounds + " registers");
+		}
+		
+		final BufferCipher[] layers = new BufferCipher[rounds];
+		
+		for (int i = 0; i < rounds; i++) {
+			final CipherPool.Slot slot = slot(Cipher.DECRYPT_MODE, KEY.keySegment(i * KEYLEN, KEYLEN));
+			layers[i] = new CipherLayer(slot, getCipher(slot, registers[i]), registers[i]);
+		}
+		
+		return new BufferChain(layers);
+	}
+	
+	
+	/**
+	 * one round of encryption as a BufferCipher. The cipher goes back to the pool
+	 * after doFinal.
+	 */
+	private static final class CipherLayer implements BufferCipher {
+		
+		private final CipherPool.Slot slot;
+		private final int blockSize;
+		private Cipher cipher;
+		
+		/*
+		 * last block of input when decrypting part of a stream, or null
+		 */
+		private final byte[] register;
+		
+		CipherLayer(final CipherPool.Slot slot, final Cipher cipher) {
+			this(slot, cipher, null);
+		}
+		
+		CipherLayer(final CipherPool.Slot slot, final Cipher cipher, final byte[] register) {
+			this.slot = slot;
+			this.cipher = cipher;
+			this.blockSize = cipher.getBlockSize();
+			this.register = register;
+		}
+		
+		/**
+		 * keep the last block of input in the register. In a feedback mode this is
+		 * the cipher text the next block depends on.
+		 * 
+		 * @param in input about to be processed
+		 */
+		private void track(final ByteBuffer in) {
+			
+			final int n = in.remaining();
+			final ByteBuffer last = in.duplicate();
+			
+			if (n >= register.length) {
+				last.position(last.limit() - register.length);
+				last.get(register);
+			} else {
+				System.arraycopy(register, n, register, 0, register.length - n);
+				last.get(register, register.length - n, n);
+			}
+		}
+		
+		public void update(final ByteBuffer in, final ByteBuffer out) {
+			if (register != null) {
+				track(in);
+			}
+			try {
+				cipher().update(in, out);
+			} catch (ShortBufferException e) {
+				throw new BufferOverflowException();
+			}
+		}
+		
+		public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+			if (register != null) {
+				track(in);
+			}
+			try {
+				cipher().doFinal(in, out);
+			} catch (ShortBufferException e) {
+				throw new BufferOverflowException();
+			} catch (GeneralSecurityException e) {
+				// stream modes without padding don't fail here
+				throw new IllegalStateException(e);
+			}
+			
+			CipherPool.release(slot, cipher);
+			cipher = null;
+		}
+		
+		public int getOutputSize(final int inputLen) {
+			// a feedback mode holds back less than one block
+			return inputLen + blockSize;
+		}
+		
+		public void close() {
+			// a round left part way through isn't put back in the pool
+			cipher = null;
+		}
+		
+		private Cipher cipher() {
+			if (cipher == null) {
+				throw new IllegalStateException("round already finished");
+			}
+			return cipher;
+		}
+	}
+	
+	
+	/**
+	 * the ciphers of every round, applied one after the other between two work
+	 * buffers. The buffers hold a slice of input, the stream buffer size, plus
+	 * the bytes each round can hold back, so there is one copy and one call per
+	 * round for each slice and memory doesn't depend on how many rounds there
+	 * are beyond that.
+	 */
+	private static final class Rounds {
+		
+		/*
+		 * input bytes processed at a time
+		 */
+		final int slice;
+		
+		private final CipherPool.Slot[] slots;
+		private final Cipher[] ciphers;
+		private final byte[][] work = new byte[2][];
+		private int current = 0;
+		private boolean released = false;
+		
+		/**
+		 * create the rounds
+		 * 
+		 * @param slots pool slot of each cipher
+		 * @param ciphers ciphers in the order they are applied
+		 * @param slice input bytes processed at a time
+		 */
+		Rounds(final CipherPool.Slot[] slots, final Cipher[] ciphers, final int slice) {
+			this.slots = slots;
+			this.ciphers = ciphers;
+			this.slice = slice;
+			
+			int size = slice;
+			for (Cipher cipher : ciphers) {
+				size += cipher.getBlockSize();
+			}
+			work[0] = new byte[size];
+			work[1] = new byte[size];
+		}
+		
+		/**
+		 * @return buffer to put up to slice input bytes in, at the start
+		 */
+		byte[] input() {
+			return work[0];
+		}
+		
+		/**
+		 * @return buffer holding the output of the last run, from the start
+		 */
+		byte[] output() {
+			return work[current];
+		}
+		
+		/**
+		 * run the bytes in the input buffer through every round
+		 * 
+		 * @param len number of input bytes
+		 * @param last true to finish every round
+		 * @return number of output bytes
+		 * @throws IOException if a round fails
+		 */
+		int run(int len, final boolean last) throws IOException {
+			
+			int src = 0;
+			
+			try {
+				for (Cipher cipher : ciphers) {
+					final int dst = src ^ 1;
+					len = last ? cipher.doFinal(work[src], 0, len, work[dst], 0)
+							: cipher.update(work[src], 0, len, work[dst], 0);
+					src = dst;
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+			
+			current = src;
+			return len;
+		}
+		
+		/**
+		 * put the ciphers back in the pool
+		 */
+		void release() {
+			if (!released) {
+				released = true;
+				for (int i = 0; i < ciphers.length; i++) {
+					CipherPool.release(slots[i], ciphers[i]);
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * output stream encrypting with every round, producing the same bytes as one
+	 * CipherOutputStream nested inside another for each round.
+	 */
+	private static final class FusedCipherOutputStream extends FilterOutputStream {
+		
+		private final Rounds rounds;
+		private boolean closed = false;
+		
+		FusedCipherOutputStream(final OutputStream out, final Rounds rounds) {
+			super(out);
+			this.rounds = rounds;
+		}
+		
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		public void write(final byte[] b, int off, int len) throws IOException {
+			
+			while (len > 0) {
+				final int n = Math.min(len, rounds.slice);
+				System.arraycopy(b, off, rounds.input(), 0, n);
+				
+				// run first; the rounds decide which buffer holds the output
+				final int encrypted = rounds.run(n, false);
+				out.write(rounds.output(), 0, encrypted);
+				off += n;
+				len -= n;
+			}
+		}
+		
+		public void flush() throws IOException {
+			out.flush();
+		}
+		
+		public void close() throws IOException {
+			
+			if (closed) {
+				return;
+			}
+			closed = true;
+			
+			try {
+				final int encrypted = rounds.run(0, true);
+				out.write(rounds.output(), 0, encrypted);
+				out.flush();
+			} finally {
+				rounds.release();
+				out.close();
+			}
+		}
+	}
+	
+	
+	/**
+	 * input stream decrypting with every round, producing the same bytes as one
+	 * CipherInputStream nested inside another for each round.
+	 */
+	private static final class FusedCipherInputStream extends FilterInputStream {
+		
+		private final Rounds rounds;
+		private int position = 0;
+		private int limit = 0;
+		private boolean done = false;
+		private boolean closed = false;
+		
+		FusedCipherInputStream(final InputStream in, final Rounds rounds) {
+			super(in);
+			this.rounds = rounds;
+		}
+		
+		/**
+		 * decrypt the next slice of input
+		 * 
+		 * @return false at the end of the input
+		 * @throws IOException on error
+		 */
+		private boolean fill() throws IOException {
+			
+			while (position >= limit) {
+				
+				if (done) {
+					return false;
+				}
+				
+				final int n = in.read(rounds.input(), 0, rounds.slice);
+				if (n < 0) {
+					limit = rounds.run(0, true);
+					done = true;
+				} else {
+					limit = rounds.run(n, false);
+				}
+				position = 0;
+			}
+			return true;
+		}
+		
+		public int read() throws IOException {
+			return fill() ? rounds.output()[position++] & 0xFF : -1;
+		}
+		
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			
+			final int n = Math.min(len, limit - position);
+			System.arraycopy(rounds.output(), position, b, off, n);
+			position += n;
+			return n;
+		}
+		
+		public long skip(final long n) {
+			final int skipped = (int) Math.max(0, Math.min(n, limit - position));
+			position += skipped;
+			return skipped;
+		}
+		
+		public int available() {
+			return limit - position;
+		}
+		
+		public boolean markSupported() {
+			return false;
+		}
+		
+		public void close() throws IOException {
+			
+			if (closed) {
+				return;
+			}
+			closed = true;
+			
+			try {
+				in.close();
+			} finally {
+				rounds.release();
+			}
+		}
+	}
 }
@@ -26,11 +26,11 @@ package prng;
  * @author CLARKM
  *
  */
-public class BlumBlumShub extends ExtendedRandom {
+public class BlumBlumShub extends LongStateRandom {
 
 	// The 9,999,979,999th prime is 252,097,271,807.
 	// this does not use all 64 bits so the 'next' method will use the lower 32 bits.
-	private static final long M = 252097271807L * 518649336203L;
+	static final long M = 252097271807L * 518649336203L;
 	
 
 	BlumBlumShub() {
@@ -42,10 +42,54 @@ public class BlumBlumShub extends ExtendedRandom {
 	 * @param bits - requested bits, ranges from 1 to 32
 	 */
 	public int nextInt() {
-		long s  = seedToLong();
+		long s = state();
 		s = (s * s) % M;
-		setSeed(s);
+		advance(s);
 		return (int) (s >>> 16);
 	}
+	
+	
+	/**
+	 * fill part of an array with ints, keeping the state in a local
+	 */
+	public void nextInts(final int[] ints, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = (s * s) % M;
+			ints[i] = (int) (next >>> 16);
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each int, keeping the state in a local
+	 */
+	public void nextBytes(final byte[] bytes, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = (s * s) % M;
+			bytes[i] = (byte) (next >>> 16);
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
 
 }
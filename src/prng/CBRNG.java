@@ -1,5 +1,8 @@
 package prng;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -49,6 +52,9 @@ public class CBRNG extends ExtendedRandom {
 	private static final int KEYLEN = 16;
 	private Cipher cipher;
 	
+	/* key and IV of the cipher, the start of the seed when it was created */
+	private byte[] cipherKey = null;
+	
 	/* use the standard Random class to increment counter */
 	private long counter = Long.MIN_VALUE;
 	
@@ -93,9 +99,7 @@ public class CBRNG extends ExtendedRandom {
 		
 		try {
 			if (cipher == null) {
-				byte[] iv = new byte[16];
-				System.arraycopy(getSeed(), 0, iv, 0, Math.min(getSeed().length, 16));
-				cipher = getCipher(Cipher.ENCRYPT_MODE, iv, iv);
+				startCipher(getSeed());
 			}
 			// use the seed as part of the encryption
 			cipher.update(getSeed());
@@ -110,5 +114,156 @@ public class CBRNG extends ExtendedRandom {
 		
 		return bytesToInt(result);
 	}
+	
+	
+	/**
+	 * fill part of an array with ints. The seed is read once and the counter and
+	 * cipher output buffers are reused, rather than allocated for every int.
+	 */
+	@Override
+	public void nextInts(final int[] ints, final int offset, final int len) {
+		
+		final byte[] seed = getSeed();
+		final byte[] count = new byte[Long.BYTES];
+		
+		try {
+			final byte[] result = blockBuffer(seed);
+			for (int i = offset; i < offset + len; i++) {
+				ints[i] = nextBlock(seed, count, result);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(10);
+		} 
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each int, as nextInts
+	 */
+	@Override
+	public void nextBytes(final byte[] bytes, final int offset, final int len) {
+		
+		final byte[] seed = getSeed();
+		final byte[] count = new byte[Long.BYTES];
+		
+		try {
+			final byte[] result = blockBuffer(seed);
+			for (int i = offset; i < offset + len; i++) {
+				bytes[i] = (byte) nextBlock(seed, count, result);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(10);
+		} 
+	}
+	
+	
+	/**
+	 * create the cipher if needed and a buffer for its output
+	 * 
+	 * @param seed current seed
+	 * @return buffer for one encrypted seed and counter
+	 * @throws Exception on cipher error
+	 */
+	private byte[] blockBuffer(final byte[] seed) throws Exception {
+		
+		if (cipher == null) {
+			startCipher(seed);
+		}
+		return new byte[cipher.getOutputSize(seed.length + Long.BYTES)];
+	}
+	
+	
+	/**
+	 * create the cipher. The key and IV are the start of the seed, and the cipher is
+	 * kept when the seed changes.
+	 * 
+	 * @param seed current seed
+	 * @throws Exception on cipher error
+	 */
+	private void startCipher(final byte[] seed) throws Exception {
+		
+		final byte[] iv = new byte[16];
+		System.arraycopy(seed, 0, iv, 0, Math.min(seed.length, 16));
+		cipher = getCipher(Cipher.ENCRYPT_MODE, iv, iv);
+		cipherKey = iv;
+	}
+	
+	
+	/**
+	 * write the seed, the counter and the key of the cipher, so the sequence can be
+	 * continued from this point later
+	 * 
+	 * @param out destination of the state
+	 * @throws IOException on error
+	 */
+	void writeState(final DataOutput out) throws IOException {
+		
+		final byte[] seed = getSeed();
+		out.writeInt(seed.length);
+		out.write(seed);
+		out.writeLong(counter);
+		out.writeBoolean(cipherKey != null);
+		if (cipherKey != null) {
+			out.write(cipherKey);
+		}
+	}
+	
+	
+	/**
+	 * continue from a state written by writeState
+	 * 
+	 * @param in source of the state
+	 * @throws IOException on error
+	 */
+	void readState(final DataInput in) throws IOException {
+		
+		final int length = in.readInt();
+		if (length < 0 || length > 1024*1024) {
+			throw new IOException("damaged generator state");
+		}
+		
+		final byte[] seed = new byte[length];
+		in.readFully(seed);
+		setSeed(seed);
+		counter = in.readLong();
+		
+		cipher = null;
+		cipherKey = null;
+		
+		if (in.readBoolean()) {
+			final byte[] key = new byte[KEYLEN];
+			in.readFully(key);
+			try {
+				startCipher(key);
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	
+	/**
+	 * encrypt the seed and the next counter value, as nextInt
+	 * 
+	 * @param seed current seed
+	 * @param count buffer for the counter bytes
+	 * @param result buffer for the cipher output
+	 * @return random int
+	 * @throws Exception on cipher error
+	 */
+	private int nextBlock(final byte[] seed, final byte[] count, final byte[] result) throws Exception {
+		
+		final long value = counter++;
+		for (int i = 0; i < count.length; i++) {
+			count[i] = (byte) (value >> i*8);
+		}
+		
+		cipher.update(seed);
+		cipher.update(count);
+		cipher.doFinal(result, 0);
+		return bytesToInt(result);
+	}
 
 }
@@ -0,0 +1,189 @@
+package prng;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * CTRRandom - counter-based random numbers from AES in counter mode. Like CBRNG the output is the
+ * encryption of a counter, but the counters are encrypted a batch at a time with one Cipher.update,
+ * which lets the JVM use the AES instructions of the processor, and every byte of the cipher output
+ * is used. An int is four bytes of the batch, and nextBytes hands out the bytes of the batch directly,
+ * so unlike the older generators the bytes are not the low bytes of successive ints.
+ *
+ * The key and the initial counter are a SHA-256 digest of the whole seed. The sequence is not the
+ * same as CBRNG's.
+ *
+ * @author CLARKM
+ *
+ */
+public class CTRRandom extends ExtendedRandom {
+
+	/*
+	 * specification of cipher used for encryption
+	 */
+	private static final String CIPHERSPEC = "AES/CTR/NoPadding";
+
+	/*
+	 * AES key length, and the length of the initial counter block
+	 */
+	private static final int KEYLEN = 16;
+
+	/*
+	 * bytes encrypted at a time, a multiple of the AES block size
+	 */
+	private static final int BATCH = 4096;
+
+	private Cipher cipher = null;
+
+	/*
+	 * plain text of a batch. Counter mode encrypts the counters and XORs them into
+	 * the plain text, so zeros give the encrypted counters themselves.
+	 */
+	private final byte[] zeros = new byte[BATCH];
+
+	/*
+	 * current batch of random bytes and the next unused byte
+	 */
+	private final byte[] batch = new byte[BATCH];
+	private int index = BATCH;
+
+
+	/**
+	 * seeded from the system source of entropy
+	 */
+	public CTRRandom() {
+		this(new SecureRandom().generateSeed(32));
+	}
+
+
+	/**
+	 * seeded with a byte array
+	 *
+	 * @param seed seed of any length
+	 */
+	public CTRRandom(final byte[] seed) {
+		setSeed(seed);
+	}
+
+
+	/**
+	 * seed with a long
+	 *
+	 * @param newSeed seed
+	 */
+	public void setSeed(final long newSeed) {
+		setSeed(longToByteArray(newSeed));
+	}
+
+
+	/**
+	 * start a new sequence from the seed. The key and the first counter are digested
+	 * from all of the seed.
+	 *
+	 * @param seed seed of any length
+	 */
+	public void setSeed(final byte[] seed) {
+
+		super.setSeed(seed);
+
+		try {
+			final byte[] digest = MessageDigest.getInstance("SHA-256").digest(seed);
+			cipher = Cipher.getInstance(CIPHERSPEC);
+			cipher.init(Cipher.ENCRYPT_MODE,
+					new SecretKeySpec(digest, 0, KEYLEN, CIPHERSPEC.substring(0, CIPHERSPEC.indexOf("/"))),
+					new IvParameterSpec(digest, KEYLEN, KEYLEN));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			System.exit(10);
+		}
+
+		index = BATCH;
+	}
+
+
+	@Override
+	public int nextInt() {
+
+		if (index > BATCH - 4) {
+			fill(batch, 0, BATCH);
+			index = 0;
+		}
+
+		final byte[] b = batch;
+		final int i = index;
+		index += 4;
+
+		return (b[i] & 0xFF)
+				| (b[i + 1] & 0xFF) << 8
+				| (b[i + 2] & 0xFF) << 16
+				| (b[i + 3] & 0xFF) << 24;
+	}
+
+
+	/**
+	 * fill part of an array with ints
+	 */
+	@Override
+	public void nextInts(final int[] ints, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			ints[i] = nextInt();
+		}
+	}
+
+
+	/**
+	 * fill part of an array with the next bytes of the batch. Whole batches are
+	 * encrypted straight into the array.
+	 */
+	@Override
+	public void nextBytes(final byte[] bytes, int offset, int len) {
+
+		while (len > 0) {
+
+			if (index == BATCH && len >= BATCH) {
+				final int n = len - len % BATCH;
+				for (int done = 0; done < n; done += BATCH) {
+					fill(bytes, offset + done, BATCH);
+				}
+				offset += n;
+				len -= n;
+				continue;
+			}
+
+			if (index == BATCH) {
+				fill(batch, 0, BATCH);
+				index = 0;
+			}
+
+			final int n = Math.min(len, BATCH - index);
+			System.arraycopy(batch, index, bytes, offset, n);
+			index += n;
+			offset += n;
+			len -= n;
+		}
+	}
+
+
+	/**
+	 * encrypt the next counters
+	 *
+	 * @param output array for the encrypted counters
+	 * @param offset first byte to write
+	 * @param len number of bytes, at most BATCH
+	 */
+	private void fill(final byte[] output, final int offset, final int len) {
+
+		try {
+			cipher.update(zeros, 0, len, output, offset);
+		} catch (ShortBufferException e) {
+			e.printStackTrace();
+			System.exit(10);
+		}
+	}
+}
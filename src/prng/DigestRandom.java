@@ -1,13 +1,28 @@
 package prng;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
  * A digest-based random number generator that allows use of any digest method, and 
  * any seed length.
  * 
+ * The state is digested into buffers made once, so generating numbers allocates nothing.
+ * With more than one lane the generator is a different sequence: each lane keeps a chaining
+ * value of its own and digests it with a counter, a stripe of every lane is made at a time on
+ * the common pool so several processors contribute, and every byte of the digests is used.
+ * 
+ * With one lane, the original sequence, the state is a single digest copied stateMultiplier
+ * times, so the numbers made from each state repeat after one digest length. Uses that
+ * need every byte to be new, such as seeding, run at least two lanes.
+ * 
  * @author crypto
  *
  */
@@ -20,6 +35,22 @@ public class DigestRandom extends ExtendedRandom {
 	private transient byte[] state;
 	private static int stateMultiplier = 5;
 	private transient int index;
+	
+	/* the next state is made here, then the two are swapped */
+	private transient byte[] spare;
+	
+	/*
+	 * most lanes, and the digests in the stripe each lane makes per refill
+	 */
+	public static final int MAX_LANES = 64;
+	private static final int STRIPE_DIGESTS = 256;
+	
+	/* lanes; 1 for the original single sequence */
+	private final int lanes;
+	
+	/* one chaining value and one task for each lane */
+	private byte[][] chains;
+	private Lane[] tasks;
 
 	
 	/**
@@ -29,15 +60,53 @@ public class DigestRandom extends ExtendedRandom {
 		this(DEFAULT_DIGEST);
 	}
 	
+	/**
+	 * constructor for a digest with several lanes
+	 * 
+	 * @param lanes number of lanes, 1 for the original sequence
+	 */
+	public DigestRandom(final int lanes) {
+		this(DEFAULT_DIGEST, lanes);
+	}
+	
 	/**
 	 * constructor with specified digest name
 	 * 
 	 * @param digestName name of digest recognized by java
 	 */
 	DigestRandom(String digestName)  {
+		this(digestName, 1);
+	}
+	
+	/**
+	 * constructor with specified digest name and lanes
+	 * 
+	 * @param digestName name of digest recognized by java
+	 * @param lanes number of lanes, 1 for the original sequence
+	 */
+	DigestRandom(final String digestName, final int lanes)  {
+		
+		if (lanes < 1 || lanes > MAX_LANES) {
+			throw new IllegalArgumentException("lanes must be 1 to " + MAX_LANES);
+		}
+		this.lanes = lanes;
+		
 		try {
 			digest = MessageDigest.getInstance(digestName);
-			state = new byte[digest.getDigestLength() * stateMultiplier];
+			final int length = digest.getDigestLength();
+			
+			if (lanes == 1) {
+				state = new byte[length * stateMultiplier];
+				spare = new byte[state.length];
+			} else {
+				state = new byte[length * STRIPE_DIGESTS * lanes];
+				index = state.length;
+				chains = new byte[lanes][length];
+				tasks = new Lane[lanes];
+				for (int i = 0; i < lanes; i++) {
+					tasks[i] = new Lane(i, i == 0 ? digest : MessageDigest.getInstance(digestName));
+				}
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -46,20 +115,25 @@ public class DigestRandom extends ExtendedRandom {
 
 	
 	/**
-	 * update the state used to generate random numbers
+	 * update the state used to generate random numbers. Every part of the state is
+	 * the digest of the old state, so it is digested once and copied.
 	 */
 	void updateState() {
 		
-		final byte[] result = new byte[state.length];
+		if (lanes > 1) {
+			updateLanes();
+			return;
+		}
+		
 		final int length = digest.getDigestLength();
 		
-		for (int i = 0; i < stateMultiplier; i++)  {
-			// for each loop this digests the digest.
-			System.arraycopy(digest.digest(state), 0, result, length*i, length);
+		digest.update(state);
+		digestInto(digest, spare, 0);
+		
+		for (int i = 1; i < stateMultiplier; i++)  {
+			System.arraycopy(spare, 0, spare, length*i, length);
 		}
-		index = 0;
-		state = result;
-
+		swap();
 	}
 	
 	/**
@@ -69,8 +143,29 @@ public class DigestRandom extends ExtendedRandom {
 	 */
 	public void setSeed(final byte[] seed) {
 		if (digest == null) return; // when called before initialization
+		
+		if (lanes > 1) {
+			seedLanes(seed);
+			return;
+		}
+		
+		/*
+		 * the first part of the new state digests the seed with the state, the
+		 * others the state alone.
+		 */
+		final int length = digest.getDigestLength();
+		
 		digest.update(seed);
-		updateState();
+		digest.update(state);
+		digestInto(digest, spare, 0);
+		
+		digest.update(state);
+		digestInto(digest, spare, length);
+		
+		for (int i = 2; i < stateMultiplier; i++)  {
+			System.arraycopy(spare, length, spare, length*i, length);
+		}
+		swap();
 	}
 	
 	/**
@@ -84,35 +179,224 @@ public class DigestRandom extends ExtendedRandom {
 	
 	
 	/**
-	 * provides the next bytes from the random stream. 
+	 * required method to return a random number of bits
 	 * 
-	 * @param bytes byte array to be filled with bytes
+	 * @param bits number of bits between 0 and 32
+	 * @return random integer composed of desired number of bits
 	 */
-	private final int nextByte() {
+	public final int nextInt() {
 		
-		// get more bytes if necessary
-		if (index >= state.length ) {
+		// bytes handed out by nextBytes with lanes may leave the index unaligned
+		index = (index + 3) & ~3;
+		
+		// the state is a multiple of four bytes, so an int never spans two states
+		if (index >= state.length) {
 			updateState();
 		}
 		
-		return (int)(state[index++]);
+		final byte[] s = state;
+		final int i = index;
+		index += 4;
+		
+		// bytes are sign extended, as they always have been
+		return s[i] | (s[i + 1] << 8) | (s[i + 2] << 16) | (s[i + 3] << 24);
 	}
 	
+	
 	/**
-	 * required method to return a random number of bits
+	 * fill part of an array with ints
+	 */
+	public final void nextInts(final int[] ints, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			ints[i] = nextInt();
+		}
+	}
+	
+	
+	/**
+	 * fill part of an array with random bytes. With one lane each byte is the low byte
+	 * of an int, its first state byte, and the other three are skipped. With lanes the
+	 * state is copied, every byte of it.
+	 */
+	public final void nextBytes(final byte[] bytes, int offset, int len) {
+		
+		if (lanes > 1) {
+			while (len > 0) {
+				if (index >= state.length) {
+					updateState();
+				}
+				final int n = Math.min(len, state.length - index);
+				System.arraycopy(state, index, bytes, offset, n);
+				index += n;
+				offset += n;
+				len -= n;
+			}
+			return;
+		}
+		
+		for (int i = offset; i < offset + len; i++) {
+			
+			if (index >= state.length) {
+				updateState();
+			}
+			
+			bytes[i] = state[index];
+			index += 4;
+		}
+	}
+	
+	
+	/**
+	 * write the state, so the sequence can be continued from this point later. Only
+	 * the single lane generator can be saved.
 	 * 
-	 * @param bits number of bits between 0 and 32
-	 * @return random integer composed of desired number of bits
+	 * @param out destination of the state
+	 * @throws IOException on error
 	 */
-	public final int nextInt() {
+	void writeState(final DataOutput out) throws IOException {
+		
+		if (lanes > 1) {
+			throw new IllegalStateException("the state of lanes can't be saved");
+		}
+		
+		out.writeInt(state.length);
+		out.write(state);
+		out.writeInt(index);
+	}
+	
+	
+	/**
+	 * continue from a state written by writeState
+	 * 
+	 * @param in source of the state
+	 * @throws IOException on error, or if the state is not from this digest
+	 */
+	void readState(final DataInput in) throws IOException {
+		
+		if (lanes > 1) {
+			throw new IllegalStateException("the state of lanes can't be restored");
+		}
+		
+		if (in.readInt() != state.length) {
+			throw new IOException("digest state doesn't match");
+		}
+		
+		in.readFully(state);
+		index = in.readInt();
+		
+		if (index < 0 || index > state.length || (index & 3) != 0) {
+			throw new IOException("damaged digest state");
+		}
+	}
+	
+	
+	/**
+	 * make the spare state the current one
+	 */
+	private void swap() {
+		final byte[] old = state;
+		state = spare;
+		spare = old;
+		index = 0;
+	}
+	
+	
+	/**
+	 * seed every lane. Each lane digests its chaining value, the seed and its lane number,
+	 * so the lanes differ, and the stripe already made is dropped.
+	 * 
+	 * @param seed seed bytes
+	 */
+	private void seedLanes(final byte[] seed) {
 		
-		final int val = 
-				  (nextByte() ) 
-				| (nextByte() << 8)   
-				| (nextByte() << 16) 
-				| (nextByte() << 24) ;
+		for (int i = 0; i < lanes; i++) {
+			final MessageDigest d = tasks[i].digest;
+			d.update(chains[i]);
+			d.update(seed);
+			d.update((byte) i);
+			digestInto(d, chains[i], 0);
+		}
+		index = state.length;
+	}
+	
+	
+	/**
+	 * make the next stripe of every lane, lanes other than the first on the common pool
+	 */
+	private void updateLanes() {
 		
-		return val;
+		for (Lane task : tasks) {
+			task.reinitialize();
+		}
+		ForkJoinTask.invokeAll(tasks);
+		index = 0;
+	}
+	
+	
+	/**
+	 * finish a digest into part of an array
+	 * 
+	 * @param d digest
+	 * @param output array
+	 * @param offset first byte to write
+	 */
+	private static void digestInto(final MessageDigest d, final byte[] output, final int offset) {
+		try {
+			d.digest(output, offset, d.getDigestLength());
+		} catch (DigestException e) {
+			// the arrays are sized for the digest
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	
+	/**
+	 * one lane: digests of its chaining value filling its stripe of the state
+	 */
+	private final class Lane extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private final int lane;
+		private final MessageDigest digest;
+		
+		Lane(final int lane, final MessageDigest digest) {
+			this.lane = lane;
+			this.digest = digest;
+		}
+		
+		protected void compute() {
+			
+			final byte[] chain = chains[lane];
+			final int length = chain.length;
+			final int start = lane * length * STRIPE_DIGESTS;
+			
+			// each digest of the stripe is of the chaining value and its number, so the bytes
+			// handed out don't give away the chaining value or the digests after them
+			for (int i = 0; i < STRIPE_DIGESTS; i++) {
+				digest.update(chain);
+				counter(digest, i);
+				digestInto(digest, state, start + i * length);
+			}
+			
+			// the next chaining value has a number no stripe digest uses
+			digest.update(chain);
+			counter(digest, STRIPE_DIGESTS);
+			digestInto(digest, chain, 0);
+		}
+		
+		/**
+		 * digest a number as four bytes
+		 * 
+		 * @param d digest
+		 * @param n number
+		 */
+		private void counter(final MessageDigest d, final int n) {
+			d.update((byte) (n >>> 24));
+			d.update((byte) (n >>> 16));
+			d.update((byte) (n >>> 8));
+			d.update((byte) n);
+		}
 	}
 
 }
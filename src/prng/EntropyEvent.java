@@ -0,0 +1,39 @@
+package prng;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+/**
+ * Flight Recorder event for entropy gathering: the first seeding of the EntropyPool, each
+ * sample of the slow sources, and each reseed of a thread's generator from the pool,
+ * which waits for the pool's lock.
+ *
+ * @author mclark
+ *
+ */
+@Name("RedBox.Entropy")
+@Label("Entropy")
+@Category("RedBox")
+@Description("entropy gathered for initialization vectors and nonces")
+final class EntropyEvent extends Event {
+
+	/*
+	 * values of source
+	 */
+	static final String START = "start";
+	static final String SAMPLE = "sample";
+	static final String RESEED = "reseed";
+
+	@Label("Source")
+	@Description("start, sample or reseed")
+	String source;
+
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+}
@@ -0,0 +1,206 @@
+package prng;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+/**
+ * pool of seed bytes for SeedGenerator. The slow sources of entropy, the file system roots
+ * and every property of the runtime and thread beans, are sampled on a timer thread and
+ * mixed into a digest generator, which also keeps a buffer of bytes made ahead. A request
+ * only copies bytes out of the buffer, so it takes microseconds instead of the time to
+ * sample the sources.
+ *
+ * The generator is seeded from the SecureRandom device and the sources once, when the pool
+ * is first used. Bytes are cleared from the buffer as they are handed out, so no two
+ * requests get the same bytes.
+ *
+ * @author mclark
+ *
+ */
+final class EntropyPool {
+
+	/*
+	 * time between samples of the slow sources
+	 */
+	private static final long SAMPLE_MILLIS = 1000;
+
+	/*
+	 * bytes made ahead
+	 */
+	private static final int POOL_SIZE = 4096;
+
+	/*
+	 * the pool of the process
+	 */
+	private static final EntropyPool POOL = new EntropyPool();
+
+	/*
+	 * generator the pool is drawn from, with lanes as DigestRandom advises for seeding
+	 */
+	private final DigestRandom random = new DigestRandom(2);
+
+	/*
+	 * bytes made ahead and the first not yet handed out
+	 */
+	private final byte[] buffer = new byte[POOL_SIZE];
+	private int index = POOL_SIZE;
+
+	/*
+	 * samples mixed in so far, so users of the pool can tell when there is more entropy
+	 */
+	private volatile long samples = 0;
+
+
+	/**
+	 * seed the pool and start sampling
+	 */
+	private EntropyPool() {
+
+		/*
+		 * entropy from hardware as well. This is limited and will block
+		 * if we try to read a lot from it.
+		 */
+		final EntropyEvent event = new EntropyEvent();
+		event.begin();
+
+		random.setSeed(new SecureRandom().generateSeed(16));
+		final byte[] first = sample();
+		random.setSeed(first);
+		refill();
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.source = EntropyEvent.START;
+			event.bytes = 16 + first.length;
+			event.commit();
+		}
+
+		final Timer timer = new Timer("entropy", true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				final EntropyEvent event = new EntropyEvent();
+				event.begin();
+
+				final byte[] sample = sample();
+				synchronized (EntropyPool.this) {
+					random.setSeed(sample);
+					refill();
+				}
+				samples++;
+
+				event.end();
+				if (event.shouldCommit()) {
+					event.source = EntropyEvent.SAMPLE;
+					event.bytes = sample.length;
+					event.commit();
+				}
+			}
+		}, SAMPLE_MILLIS, SAMPLE_MILLIS);
+	}
+
+
+	/**
+	 * @return the pool of the process
+	 */
+	static EntropyPool get() {
+		return POOL;
+	}
+
+
+	/**
+	 * @return number of times the slow sources have been sampled since the pool started
+	 */
+	long samples() {
+		return samples;
+	}
+
+
+	/**
+	 * fill an array with bytes from the pool
+	 *
+	 * @param bytes array to fill
+	 */
+	synchronized void take(final byte[] bytes) {
+
+		int done = 0;
+		while (done < bytes.length) {
+
+			if (index == buffer.length) {
+				refill();
+			}
+
+			final int n = Math.min(bytes.length - done, buffer.length - index);
+			System.arraycopy(buffer, index, bytes, done, n);
+			Arrays.fill(buffer, index, index + n, (byte) 0);
+			index += n;
+			done += n;
+		}
+	}
+
+
+	/**
+	 * replace the bytes made ahead with new ones from the generator
+	 */
+	private void refill() {
+		random.nextBytes(buffer);
+		index = 0;
+	}
+
+
+	/**
+	 * get some random entropy items from the environment.
+	 *
+	 * @return random bytes for entropy.
+	 */
+	private byte[] sample() {
+
+		final StringBuilder result = new StringBuilder();
+		result.append(System.nanoTime());
+		/*
+		 * use free space, which should change often
+		 */
+		final File[] root = File.listRoots();
+
+		for (File file : root) {
+			result.append(file.getUsableSpace());
+			result.append(file.getAbsolutePath());
+			result.append(file.lastModified());
+		}
+
+		final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+		final RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+
+		for (final Method beanMethod : runtimeMXBean.getClass().getMethods()) {
+			if (beanMethod.getAnnotatedParameterTypes().length == 0) {
+				try {
+					beanMethod.setAccessible(true);
+					final Object item = beanMethod.invoke(runtimeMXBean, (Object[])null);
+					result.append(item.toString());
+				} catch (Exception e) {}
+			}
+		}
+
+		for (final Method beanMethod : threadMXBean.getClass().getMethods()) {
+			if (beanMethod.getAnnotatedParameterTypes().length == 0) {
+				try {
+					beanMethod.setAccessible(true);
+					final Object item  = beanMethod.invoke(threadMXBean, (Object[])null);
+					result.append(item.toString());
+				} catch (Exception e) {}
+			}
+		}
+
+		result.append(System.nanoTime());
+		return result.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
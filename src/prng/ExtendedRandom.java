@@ -1,4 +1,7 @@
 package prng;
+
+import java.nio.ByteBuffer;
+
 /**
  * parent class for Extended random
  */
@@ -68,13 +71,65 @@ public abstract class ExtendedRandom  {
 	
 	
 	public byte[] nextBytes(byte[] bytes) {
-		for (int i = 0; i < bytes.length; i++) {
-			bytes[i] = (byte) (nextInt() & 0xFF);
-		}
+		nextBytes(bytes, 0, bytes.length);
 		return bytes;
 	}
 	
 	
+	/**
+	 * fill part of an array with random ints, the same values as calling nextInt()
+	 * for each. Generators override this with a loop over their own state.
+	 * 
+	 * @param ints array to fill
+	 * @param offset first element to fill
+	 * @param len number of ints
+	 */
+	public void nextInts(final int[] ints, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			ints[i] = nextInt();
+		}
+	}
+	
+	
+	/**
+	 * fill part of an array with random bytes. Each byte is the low byte of one
+	 * nextInt(), so the bytes are the same as nextBytes(byte[]) has always given and
+	 * keys and streams made from them don't change. Generators override this with
+	 * a loop over their own state.
+	 * 
+	 * @param bytes array to fill
+	 * @param offset first byte to fill
+	 * @param len number of bytes
+	 */
+	public void nextBytes(final byte[] bytes, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			bytes[i] = (byte) nextInt();
+		}
+	}
+	
+	
+	/**
+	 * fill the remaining bytes of a buffer with random bytes, as nextBytes(byte[], int, int)
+	 * 
+	 * @param buffer buffer to fill from its position to its limit
+	 */
+	public void nextBytes(final ByteBuffer buffer) {
+		
+		if (buffer.hasArray()) {
+			nextBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		
+		final byte[] block = new byte[Math.min(buffer.remaining(), 256)];
+		while (buffer.hasRemaining()) {
+			final int n = Math.min(buffer.remaining(), block.length);
+			nextBytes(block, 0, n);
+			buffer.put(block, 0, n);
+		}
+	}
+	
+	
 	private boolean haveNextNextGaussian = false;
 	private double  nextNextGaussian = Double.NaN;
 	/*
@@ -181,6 +236,18 @@ public abstract class ExtendedRandom  {
 		return result;
 	}
 	
+	/**
+	 * the value seedToLong() returns after setSeed(long) with this value. The eighth
+	 * byte is folded into the first, so a generator that keeps its state as a seed
+	 * loses it on every step; loops that keep the state in a local must do the same.
+	 * 
+	 * @param value long value
+	 * @return value as stored
+	 */
+	static final long storedSeed(final long value) {
+		return (value & 0x00FFFFFFFFFFFFFFL) ^ (value >>> 56);
+	}
+	
 	/**
 	 * convert a long to a byte array.
 	 * 
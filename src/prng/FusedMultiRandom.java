@@ -0,0 +1,398 @@
+package prng;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+/**
+ * MultiRandom with the default sources built in. The numbers are the same as a MultiRandom
+ * created with the same key, but instead of an array of seven generator objects called through
+ * ExtendedRandom.nextInt(), the generators are cases of one switch on the source number and
+ * the word generators keep their state together in a single long array. The call site is no
+ * longer megamorphic, so the JIT can inline the selection and the generation step.
+ *
+ * The Mersenne Twister keeps its own block of N ints, generated with the MersenneTwister code.
+ * DigestRandom and CBRNG hold a MessageDigest and a Cipher, so they stay objects, but they are
+ * called through their own class rather than the abstract one.
+ *
+ * getState() saves every part of the state, so a sequence can be continued later from
+ * restore() without generating the numbers before it.
+ *
+ * @author Matthew Clark
+ *
+ */
+public final class FusedMultiRandom extends ExtendedRandom {
+
+	/*
+	 * mask for absolute value of an integer
+	 */
+	private static final int signMask = 0x7FFFFFFF;
+
+	/*
+	 * source numbers, in the order of the MultiRandom default classes
+	 */
+	private static final int RANDOM64 = 0;
+	private static final int MERSENNE_TWISTER = 1;
+	private static final int XORSHIFT = 2;
+	private static final int DIGEST = 3;
+	private static final int MULTIPLY_WITH_CARRY = 4;
+	private static final int BLUM_BLUM_SHUB = 5;
+	private static final int CBRNG = 6;
+	private static final int SOURCES = 7;
+
+	/*
+	 * positions in the state array. The single word generators hold their seed as
+	 * seedToLong() would return it; XORShift its seed and its state words.
+	 */
+	private static final int RANDOM64_SEED = 0;
+	private static final int MULTIPLY_WITH_CARRY_SEED = 1;
+	private static final int BLUM_BLUM_SHUB_SEED = 2;
+	private static final int XORSHIFT_SEED = 3;
+	private static final int XORSHIFT_STATE = 4;
+	private static final int STATE_SIZE = XORSHIFT_STATE + XORShift.STATE_SIZE;
+
+	/*
+	 * state of the word generators
+	 */
+	private final long[] words = new long[STATE_SIZE];
+
+	/*
+	 * XORShift position, and whether its state has been created from its seed
+	 */
+	private int xorshiftIndex = 0;
+	private boolean xorshiftStarted = false;
+
+	/*
+	 * Mersenne Twister state and position
+	 */
+	private final int[] mt = new int[MersenneTwister.N];
+	private int mti = MersenneTwister.N;
+
+	/*
+	 * generators with library state
+	 */
+	private final DigestRandom digest = new DigestRandom();
+	private final CBRNG cbrng = new CBRNG();
+
+	/*
+	 * internal state. used to select the next random number generator to use
+	 */
+	private transient int state = -1;
+
+
+	/**
+	 * default constructor, seeded from the system source of entropy
+	 */
+	public FusedMultiRandom() {
+		this(new SecureRandom().generateSeed(32));
+	}
+
+
+	/**
+	 * generate the same sequence as MultiRandom(key)
+	 *
+	 * @param key byte array used as key.
+	 */
+	public FusedMultiRandom(final byte[] key) {
+		setSeed(key);
+	}
+
+
+	/**
+	 * Random compatible constructor
+	 *
+	 * @param seed long value for seed
+	 */
+	public FusedMultiRandom(final long seed) {
+		this(longToByteArray(seed));
+	}
+
+
+	/**
+	 * continue a sequence from a saved state, without seeding
+	 *
+	 * @param saved state from getState()
+	 * @throws IOException if the state is damaged
+	 */
+	private FusedMultiRandom(final DataInputStream saved) throws IOException {
+
+		state = saved.readInt();
+
+		for (int i = 0; i < STATE_SIZE; i++) {
+			words[i] = saved.readLong();
+		}
+		xorshiftIndex = saved.readInt();
+		xorshiftStarted = saved.readBoolean();
+
+		for (int i = 0; i < MersenneTwister.N; i++) {
+			mt[i] = saved.readInt();
+		}
+		mti = saved.readInt();
+
+		digest.readState(saved);
+		cbrng.readState(saved);
+
+		if (xorshiftIndex < 0 || xorshiftIndex >= XORShift.STATE_SIZE || mti < 0 || mti > MersenneTwister.N
+				|| saved.read() >= 0) {
+			throw new IOException("damaged generator state");
+		}
+	}
+
+
+	/**
+	 * a generator that continues the sequence of the one that saved the state
+	 *
+	 * @param saved state from getState()
+	 * @return generator
+	 * @throws IOException if the state is damaged
+	 */
+	public static FusedMultiRandom restore(final byte[] saved) throws IOException {
+		return new FusedMultiRandom(new DataInputStream(new ByteArrayInputStream(saved)));
+	}
+
+
+	/**
+	 * save the state of every source and of the selection. The state includes the
+	 * seed, so it must be kept as secret as the key.
+	 *
+	 * @return state, for restore()
+	 */
+	public byte[] getState() {
+
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+		final DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			out.writeInt(state);
+
+			for (long word : words) {
+				out.writeLong(word);
+			}
+			out.writeInt(xorshiftIndex);
+			out.writeBoolean(xorshiftStarted);
+
+			for (int word : mt) {
+				out.writeInt(word);
+			}
+			out.writeInt(mti);
+
+			digest.writeState(out);
+			cbrng.writeState(out);
+			out.flush();
+
+		} catch (IOException e) {
+			// a ByteArrayOutputStream doesn't fail
+			throw new IllegalStateException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * set the seed for the random sources, as MultiRandom.setSeed(byte[])
+	 *
+	 * @param seed byte[] array with bytes for seed
+	 */
+	public void setSeed(final byte[] seed) {
+
+		state ^= Arrays.hashCode(seed);
+
+		final long value = bytesToLong(seed);
+		words[RANDOM64_SEED] = value;
+		MersenneTwister.seed(mt, bytesToIntArray(seed));
+		mti = MersenneTwister.N;
+		// XORShift creates its state from the seed only once, when it is first used
+		words[XORSHIFT_SEED] = value;
+		digest.setSeed(seed);
+		words[MULTIPLY_WITH_CARRY_SEED] = value;
+		words[BLUM_BLUM_SHUB_SEED] = value;
+		cbrng.setSeed(seed);
+	}
+
+
+	/**
+	 * seed with a single long, as MultiRandom.setSeed(long)
+	 *
+	 * @param seed set the seed
+	 */
+	public void setSeed(final long seed) {
+
+		/*
+		 * select one of the sources to generate seeds for the other sources. Like
+		 * ExtendedRandom.nextLong() each seed is two ints and'ed together.
+		 */
+		final int source = selectSource();
+
+		for (int i = 0; i < SOURCES; i++) {
+			setSeed(i, next(source) & next(source));
+		}
+		super.setSeed(seed);
+	}
+
+
+	/**
+	 * provides an integer from one of the random sources, chosen using
+	 * the state variable which is pseudorandom itself
+	 */
+	public int nextInt() {
+		return next(selectSource());
+	}
+
+
+	/**
+	 * fill part of an array with ints, each from the source chosen for it
+	 */
+	public void nextInts(final int[] ints, final int offset, final int len) {
+
+		final int end = offset + len;
+		for (int i = offset; i < end; i++) {
+			ints[i] = next(selectSource());
+		}
+	}
+
+
+	/**
+	 * fill part of an array with keystream: the low byte of one nextInt() for each byte
+	 */
+	public void nextBytes(final byte[] bytes, final int offset, final int len) {
+
+		final int end = offset + len;
+		for (int i = offset; i < end; i++) {
+			bytes[i] = (byte) next(selectSource());
+		}
+	}
+
+
+	/**
+	 * choose the source for the next number and advance the selection state
+	 *
+	 * @return source number
+	 */
+	private int selectSource() {
+
+		final int source = (state & signMask) % SOURCES;
+		state ^= next(source) & signMask;
+		return source;
+	}
+
+
+	/**
+	 * the next int from one source
+	 *
+	 * @param source source number
+	 * @return random int
+	 */
+	private int next(final int source) {
+
+		final long[] words = this.words;
+		long s;
+
+		switch (source) {
+
+		case RANDOM64:
+			s = words[RANDOM64_SEED] * (Random64.multiplier + Random64.addend);
+			words[RANDOM64_SEED] = storedSeed(s);
+			return (int) s;
+
+		case MERSENNE_TWISTER:
+			if (mti >= MersenneTwister.N) {
+				MersenneTwister.generate(mt);
+				mti = 0;
+			}
+			return MersenneTwister.temper(mt[mti++]);
+
+		case XORSHIFT:
+			if (!xorshiftStarted) {
+				startXORShift();
+			}
+			long s0 = words[XORSHIFT_STATE + xorshiftIndex];
+			xorshiftIndex = (xorshiftIndex + 1) & (XORShift.STATE_SIZE - 1);
+			long s1 = words[XORSHIFT_STATE + xorshiftIndex];
+			s1 ^= s1 << 31; // a
+			s1 ^= s1 >> 11; // b
+			s0 ^= s0 >> 30; // c
+			return (int) ((words[XORSHIFT_STATE + xorshiftIndex] = s0 ^ s1) * 1181783497276652981L);
+
+		case DIGEST:
+			return digest.nextInt();
+
+		case MULTIPLY_WITH_CARRY:
+			s = words[MULTIPLY_WITH_CARRY_SEED];
+			s = (MultiplyWithCarry.multiplier * (s & 0xffffffffL)) + (s >>> 32);
+			words[MULTIPLY_WITH_CARRY_SEED] = storedSeed(s);
+			return (int) (s >>> 32);
+
+		case BLUM_BLUM_SHUB:
+			s = words[BLUM_BLUM_SHUB_SEED];
+			s = (s * s) % BlumBlumShub.M;
+			words[BLUM_BLUM_SHUB_SEED] = storedSeed(s);
+			return (int) (s >>> 16);
+
+		default:
+			return cbrng.nextInt();
+		}
+	}
+
+
+	/**
+	 * set the seed of one source with a long, as its setSeed(long)
+	 *
+	 * @param source source number
+	 * @param seed seed
+	 */
+	private void setSeed(final int source, final long seed) {
+
+		switch (source) {
+
+		case RANDOM64:
+			words[RANDOM64_SEED] = storedSeed(seed);
+			break;
+
+		case MERSENNE_TWISTER:
+			MersenneTwister.seed(mt, seed);
+			mti = MersenneTwister.N;
+			break;
+
+		case XORSHIFT:
+			// the position is kept, as XORShift.setSeed(long) does
+			words[XORSHIFT_SEED] = storedSeed(seed);
+			startXORShift();
+			break;
+
+		case DIGEST:
+			digest.setSeed(seed);
+			break;
+
+		case MULTIPLY_WITH_CARRY:
+			words[MULTIPLY_WITH_CARRY_SEED] = storedSeed(seed);
+			break;
+
+		case BLUM_BLUM_SHUB:
+			words[BLUM_BLUM_SHUB_SEED] = storedSeed(seed);
+			break;
+
+		default:
+			cbrng.setSeed(seed);
+		}
+	}
+
+
+	/**
+	 * create the XORShift state from its seed with "standard" LC random numbers
+	 */
+	private void startXORShift() {
+
+		long sd = words[XORSHIFT_SEED];
+		for (int i = 0; i < XORShift.STATE_SIZE; i++) {
+			sd = sd * 0x5DEECE66DL + 0xBL;
+			words[XORSHIFT_STATE + i] = sd;
+		}
+		xorshiftStarted = true;
+	}
+}
@@ -0,0 +1,84 @@
+package prng;
+
+/**
+ * parent class for generators whose state is a single long. The state is kept in a long
+ * instead of the seed array of ExtendedRandom, so making a number neither converts bytes
+ * nor allocates. The numbers are the same: the state is the value seedToLong() returned
+ * with the seed array, and getSeed() returns the array ExtendedRandom would have held.
+ * 
+ * @author CLARKM
+ *
+ */
+public abstract class LongStateRandom extends ExtendedRandom {
+
+	/*
+	 * last value given to setSeed(long), or the long of the seed array
+	 */
+	private long seed = 0;
+	
+	/*
+	 * seed array, when seeded with one and no number has been made since
+	 */
+	private byte[] seedBytes = null;
+	
+	
+	/**
+	 * set the seed
+	 * @param long newSeed new seed
+	 * 
+	 */
+	public void setSeed(final long newSeed) {
+		seed = newSeed;
+		seedBytes = null;
+	}
+	
+	
+	/**
+	 * set the seed from an array. Only the long of the first eight bytes is used.
+	 * 
+	 * @param seed byte[] of key
+	 */
+	public void setSeed(final byte[] seed) {
+		this.seedBytes = new byte[seed.length];
+		System.arraycopy(seed, 0, this.seedBytes, 0, seed.length);
+		this.seed = bytesToLong(seed);
+	}
+	
+	
+	public byte[] getSeed() {
+		
+		if (seedBytes == null) {
+			return longToByteArray(seed);
+		}
+		
+		byte[] result = new byte[seedBytes.length];
+		System.arraycopy(seedBytes, 0, result, 0, seedBytes.length);
+		return result;
+	}
+	
+	
+	public long seedToLong() {
+		return state();
+	}
+	
+	
+	/**
+	 * the state for the next step
+	 * 
+	 * @return state, as seedToLong() returns it
+	 */
+	final long state() {
+		return storedSeed(seed);
+	}
+	
+	
+	/**
+	 * keep the value of a step as the new state, as setSeed(long) does
+	 * 
+	 * @param next value of the step
+	 */
+	final void advance(final long next) {
+		seed = next;
+		seedBytes = null;
+	}
+}
@@ -161,7 +161,7 @@ import java.util.Arrays;
 public class MersenneTwister extends ExtendedRandom {
 	
 	// Period parameters
-	private static final int N = 624;
+	static final int N = 624;
 	private static final int M = 397;
 	private static final int MATRIX_A = 0x9908b0df; // private static final *
 													// constant vector a
@@ -174,9 +174,10 @@ public class MersenneTwister extends ExtendedRandom {
 	private static final int TEMPERING_MASK_B = 0x9d2c5680;
 	private static final int TEMPERING_MASK_C = 0xefc60000;
 
+	private static final int[] MAG01 = { 0, MATRIX_A };
+
 	private int mt[]; // the array for the state vector
 	private int mti; // mti==N+1 means mt[N] is not initialized
-	private int mag01[];
 
 	// a good initial seed (of int size, though stored in a long)
 	// private static final long GOOD_SEED = 4357;
@@ -211,11 +212,22 @@ public class MersenneTwister extends ExtendedRandom {
 	public void setSeed(final long seed) {
 
 		mt = new int[N];
-		mag01 = new int[] { 0, MATRIX_A };
+		seed(mt, seed);
+		mti = N;
+	}
+	
+	/**
+	 * initialize a state vector from a long
+	 * 
+	 * @param mt state vector of N words
+	 * @param seed seed
+	 */
+	static void seed(final int[] mt, final long seed) {
+		
 		mt[0] = Long.valueOf(seed).hashCode();
 
-		for (mti = 1; mti < N; mti++) {
-			mt[mti] = 1812433253 * (mt[mti - 1] ^ (mt[mti - 1] >>> 30)) + mti;
+		for (int i = 1; i < N; i++) {
+			mt[i] = 1812433253 * (mt[i - 1] ^ (mt[i - 1] >>> 30)) + i;
 		}
 	}
 	
@@ -241,9 +253,22 @@ public class MersenneTwister extends ExtendedRandom {
 			throw new IllegalArgumentException(
 					"Array length must be greater than zero");
 
+		mt = new int[N];
+		seed(mt, array);
+		mti = N;
+	}
+	
+	/**
+	 * initialize a state vector from an array of integers
+	 * 
+	 * @param mt state vector of N words
+	 * @param array seed, of non-zero length
+	 */
+	static void seed(final int[] mt, final int[] array) {
+
 		int i, j, k;
 
-		setSeed(Arrays.hashCode(array));
+		seed(mt, Arrays.hashCode(array));
 		// original used fixed seed setSeed(19650218);
 
 		i = 1;
@@ -289,37 +314,95 @@ public class MersenneTwister extends ExtendedRandom {
 	 */
 	public final int nextInt() {
 
-		int y;
-
 		if (mti >= N) { // generate N words at one time
+			generate(mt);
+			mti = 0;
+		}
 
-			int kk;
-			final int[] mt = this.mt; // locals are slightly faster
-			final int[] mag01 = this.mag01; // locals are slightly faster
-
-			for (kk = 0; kk < N - M; kk++) {
-				y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
-				mt[kk] = mt[kk + M] ^ (y >>> 1) ^ mag01[y & 0x1];
+		return temper(mt[mti++]); // hope that's right!
+	}
+	
+	
+	/**
+	 * fill part of an array with ints, tempering the state block straight into it
+	 */
+	public final void nextInts(final int[] ints, int offset, int len) {
+		
+		while (len > 0) {
+			if (mti >= N) {
+				generate(mt);
+				mti = 0;
 			}
-
-			for (; kk < N - 1; kk++) {
-				y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
-				mt[kk] = mt[kk + (M - N)] ^ (y >>> 1) ^ mag01[y & 0x1];
+			
+			final int end = mti + Math.min(len, N - mti);
+			len -= end - mti;
+			
+			for (; mti < end; mti++) {
+				ints[offset++] = temper(mt[mti]);
 			}
+		}
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each tempered word
+	 */
+	public final void nextBytes(final byte[] bytes, int offset, int len) {
+		
+		while (len > 0) {
+			if (mti >= N) {
+				generate(mt);
+				mti = 0;
+			}
+			
+			final int end = mti + Math.min(len, N - mti);
+			len -= end - mti;
+			
+			for (; mti < end; mti++) {
+				bytes[offset++] = (byte) temper(mt[mti]);
+			}
+		}
+	}
+	
+	
+	/**
+	 * generate the next N words of state
+	 * 
+	 * @param mt state vector of N words
+	 */
+	static void generate(final int[] mt) {
+		
+		int y;
+		int kk;
+		final int[] mag01 = MAG01; // locals are slightly faster
 
-			y = (mt[N - 1] & UPPER_MASK) | (mt[0] & LOWER_MASK);
-			mt[N - 1] = mt[M - 1] ^ (y >>> 1) ^ mag01[y & 0x1];
+		for (kk = 0; kk < N - M; kk++) {
+			y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
+			mt[kk] = mt[kk + M] ^ (y >>> 1) ^ mag01[y & 0x1];
+		}
 
-			mti = 0;
+		for (; kk < N - 1; kk++) {
+			y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
+			mt[kk] = mt[kk + (M - N)] ^ (y >>> 1) ^ mag01[y & 0x1];
 		}
 
-		y = mt[mti++];
+		y = (mt[N - 1] & UPPER_MASK) | (mt[0] & LOWER_MASK);
+		mt[N - 1] = mt[M - 1] ^ (y >>> 1) ^ mag01[y & 0x1];
+	}
+	
+	
+	/**
+	 * temper a word of state
+	 * 
+	 * @param y state word
+	 * @return random int
+	 */
+	static int temper(int y) {
 		y ^= y >>> 11; // TEMPERING_SHIFT_U(y)
 		y ^= (y << 7) & TEMPERING_MASK_B; // TEMPERING_SHIFT_S(y)
 		y ^= (y << 15) & TEMPERING_MASK_C; // TEMPERING_SHIFT_T(y)
 		y ^= (y >>> 18); // TEMPERING_SHIFT_L(y)
-
-		return y; // hope that's right!
+		return y;
 	}
 
 }
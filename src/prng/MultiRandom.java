@@ -67,7 +67,12 @@ public class MultiRandom extends ExtendedRandom {
 	
 	private ExtendedRandom selectSource() {
 		
-		int index = (state % sources.length);
+		/*
+		 * the sign bit of state never changes after seeding, so it is masked off
+		 * here; a negative state would otherwise give a negative index. Streams
+		 * with a positive state select the same sources as before.
+		 */
+		int index = ((state & signMask) % sources.length);
 		ExtendedRandom source = sources[index];
 		state ^= source.nextInt() & signMask;
 		return sources[index];
@@ -188,4 +193,30 @@ public class MultiRandom extends ExtendedRandom {
 
 	}
 	
+	
+	/**
+	 * fill part of an array with ints, each from the source chosen for it
+	 */
+	public final void nextInts(final int[] ints, final int offset, final int len) {
+		
+		final int end = offset + len;
+		for (int i = offset; i < end; i++) {
+			ints[i] = selectSource().nextInt();
+		}
+	}
+	
+	
+	/**
+	 * fill part of an array with keystream: the low byte of one nextInt() for each
+	 * byte, exactly as if nextInt() were called once per byte. Filling a block at a
+	 * time lets callers XOR whole buffers at once.
+	 */
+	public final void nextBytes(final byte[] bytes, final int offset, final int len) {
+		
+		final int end = offset + len;
+		for (int i = offset; i < end; i++) {
+			bytes[i] = (byte) selectSource().nextInt();
+		}
+	}
+	
 }
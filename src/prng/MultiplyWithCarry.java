@@ -6,12 +6,12 @@ package prng;
  * @author CLARKM
  *
  */
-public class MultiplyWithCarry extends ExtendedRandom {
+public class MultiplyWithCarry extends LongStateRandom {
 
 	/**
 	 * 
 	 */
-	private static final long multiplier = 0xffffda61L;
+	static final long multiplier = 0xffffda61L;
 
 
 
@@ -21,10 +21,54 @@ public class MultiplyWithCarry extends ExtendedRandom {
 	 * @param bits - requested bits, ranges from 1 to 32
 	 */
 	public final int nextInt() {
-		long s = seedToLong();
+		long s = state();
 		s = (multiplier * (s & 0xffffffffL)) + (s >>> 32);
-		setSeed(s);
+		advance(s);
 		return (int)(s >>> 32);
 	}
+	
+	
+	/**
+	 * fill part of an array with ints, keeping the state in a local
+	 */
+	public final void nextInts(final int[] ints, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = (multiplier * (s & 0xffffffffL)) + (s >>> 32);
+			ints[i] = (int) (next >>> 32);
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each int, keeping the state in a local
+	 */
+	public final void nextBytes(final byte[] bytes, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = (multiplier * (s & 0xffffffffL)) + (s >>> 32);
+			bytes[i] = (byte) (next >>> 32);
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
 
 }
@@ -8,19 +8,62 @@ package prng;
  * @author CLARKM
  *
  */
-public class Random64 extends ExtendedRandom {
+public class Random64 extends LongStateRandom {
 
 
-	private static final long multiplier = 0x5DEECE66DL;
-	private static final long addend = 0xBL;
+	static final long multiplier = 0x5DEECE66DL;
+	static final long addend = 0xBL;
 
 
 
 	public int nextInt() {
-		long s = seedToLong();
-		s *= multiplier + addend;
-		setSeed(s);
+		final long s = state() * (multiplier + addend);
+		advance(s);
 		return (int)s;
 
 	}
+	
+	
+	/**
+	 * fill part of an array with ints, keeping the state in a local
+	 */
+	public void nextInts(final int[] ints, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = s * (multiplier + addend);
+			ints[i] = (int) next;
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each int, keeping the state in a local
+	 */
+	public void nextBytes(final byte[] bytes, final int offset, final int len) {
+		
+		if (len == 0) {
+			return;
+		}
+		
+		long s = state();
+		long next = s;
+		
+		for (int i = offset; i < offset + len; i++) {
+			next = s * (multiplier + addend);
+			bytes[i] = (byte) next;
+			s = storedSeed(next);
+		}
+		
+		advance(next);
+	}
 }
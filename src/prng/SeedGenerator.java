@@ -1,19 +1,27 @@
 package prng;
 
-import java.io.File;
-import java.lang.management.ManagementFactory;
-import java.lang.management.RuntimeMXBean;
-import java.lang.management.ThreadMXBean;
-import java.lang.reflect.Method;
-import java.nio.charset.StandardCharsets;
-import java.security.SecureRandom;
-
 
+/**
+ * source of initialization vectors and nonces. Each thread has a generator of its own,
+ * seeded from the EntropyPool of the process, so threads encrypting at the same time
+ * don't wait for each other and never share generator state. A generator takes a new
+ * seed from the pool when the pool has sampled the slow sources of entropy again.
+ */
 public class SeedGenerator  {
 
-	private static DigestRandom random = null;
-	private static SecureRandom srand = null;	
-	
+	/*
+	 * bytes taken from the pool to seed a generator
+	 */
+	private static final int SEED_SIZE = 64;
+
+	private static final ThreadLocal<Stripe> stripes =
+			new ThreadLocal<Stripe>() {
+				protected Stripe initialValue() {
+					return new Stripe();
+				}
+			};
+
+
 	/**
 	 * generate a key using fairly random input. This is faster than the random device as it
 	 * doesn't run out of entropy
@@ -23,78 +31,51 @@ public class SeedGenerator  {
 	 */
 	public final byte[] generateSeed(final int size) {
 		
-		// keep using the same source to insure a differnt value every time
-		// this is called.
-		if (random == null) {
-			random = new DigestRandom();
-		}
-
-		/*
- 		* generate entropy from hardware as well. This is limited and
- 		* will block if we try to read a lot from it.
- 		*/	
-		if (srand == null) {
-			srand = new SecureRandom();
-			random.setSeed(srand.generateSeed(16));
-		}
-	
-		random.setSeed(getEntropy());
 		final byte[] result = new byte[size];
-		random.nextBytes(result);
+		stripes.get().nextBytes(result);
 		return result;
 	}
-	
-	
+
+
 	/**
-	 * get some random entropy items from the environment.
-	 * 
-	 * @return random bytes for entropy.
+	 * the generator of one thread and the pool sample it was last seeded after
 	 */
-	private final byte[] getEntropy() {
+	private static final class Stripe {
 
-		final StringBuilder result = new StringBuilder();
-		result.append(System.nanoTime());
 		/*
-		 * use free space, which should change often
+		 * two lanes; see DigestRandom on the single lane
 		 */
-		final File[] root = File.listRoots();
+		private final DigestRandom random = new DigestRandom(2);
+		private long seeded = -1;
 
-		for (File file : root) {
-			result.append(file.getUsableSpace());
-			if (random.nextBoolean()) {
-				result.append(file.getAbsolutePath());
-				result.append(random.nextLong());
-				result.append(file.lastModified());
-			}
-		}
+		/**
+		 * fill an array, first reseeding from the pool if it has sampled since
+		 * 
+		 * @param bytes array to fill
+		 */
+		void nextBytes(final byte[] bytes) {
 
-		result.append(this.toString());
+			final EntropyPool pool = EntropyPool.get();
+			final long samples = pool.samples();
 
-		final ThreadMXBean threadMXBean = 
-				(ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (samples != seeded) {
+				final EntropyEvent event = new EntropyEvent();
+				event.begin();
 
-		final RuntimeMXBean runtimeMXBean = ManagementFactory.getRuntimeMXBean();
+				final byte[] seed = new byte[SEED_SIZE];
+				pool.take(seed);
+				random.setSeed(seed);
+				seeded = samples;
 
-		for (final Method beanMethod : runtimeMXBean.getClass().getMethods()) {
-			if (beanMethod.getAnnotatedParameterTypes().length == 0) {
-				try {
-					beanMethod.setAccessible(true);
-					final Object item = beanMethod.invoke(runtimeMXBean, (Object[])null);
-					result.append(item.toString());
-				} catch (Exception e) {}
+				event.end();
+				if (event.shouldCommit()) {
+					event.source = EntropyEvent.RESEED;
+					event.bytes = SEED_SIZE;
+					event.commit();
+				}
 			}
-		}
 
-		for (final Method beanMethod : threadMXBean.getClass().getMethods()) {
-			if (beanMethod.getAnnotatedParameterTypes().length == 0) {
-				try {
-					beanMethod.setAccessible(true);
-					final Object item  = beanMethod.invoke(threadMXBean, (Object[])null);
-					result.append(item.toString());
-				} catch (Exception e) {}
-			}
+			random.nextBytes(bytes);
 		}
-
-		return result.toString().getBytes(StandardCharsets.UTF_8);
 	}
 }
@@ -13,7 +13,7 @@ public class XORShift extends ExtendedRandom {
 
 	private long[] s;
 	private int p;
-	private static final int STATE_SIZE = 32;
+	static final int STATE_SIZE = 32;
 	
 	/**
 	 * set the seed 
@@ -22,7 +22,7 @@ public class XORShift extends ExtendedRandom {
 	 */
 	public void setSeed(final long newSeed) {
 		
-		setSeed(newSeed);
+		super.setSeed(newSeed);
 		init();
 
 	}
@@ -63,5 +63,25 @@ public class XORShift extends ExtendedRandom {
 	public final int nextInt() {
 		  return (int)xorshift1024star();
 	}
+	
+	
+	/**
+	 * fill part of an array with ints
+	 */
+	public final void nextInts(final int[] ints, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			ints[i] = (int) xorshift1024star();
+		}
+	}
+	
+	
+	/**
+	 * fill part of an array with the low byte of each int
+	 */
+	public final void nextBytes(final byte[] bytes, final int offset, final int len) {
+		for (int i = offset; i < offset + len; i++) {
+			bytes[i] = (byte) xorshift1024star();
+		}
+	}
 
 }
@@ -0,0 +1,197 @@
+package random;
+
+import java.io.IOException;
+
+import RedBox.RingBuffer;
+import prng.ExtendedRandom;
+
+
+/**
+ * generates keystream on a thread of its own, ahead of the stream that uses it. The
+ * keystream depends only on the key and the nonce, not on the data, so a producer thread
+ * can fill blocks with it while the caller's thread XORs the blocks made before. Filled
+ * blocks go to the consumer through one ring buffer and used blocks return to the
+ * producer through another, so at most BLOCKS blocks are made ahead and nothing is
+ * allocated after the start. Each thread parks while its ring is empty and is unparked
+ * when the other hands a block over.
+ *
+ * The bytes are the same as calling nextBytes on the generator directly. Once the
+ * prefetcher is created the generator belongs to the producer thread and must not be
+ * used or seeded by anyone else.
+ *
+ * @author CLARKM
+ *
+ */
+final class KeystreamPrefetcher implements Runnable {
+
+	/*
+	 * blocks in the ring, filled ahead of the consumer
+	 */
+	private static final int BLOCKS = 8;
+
+	private final ExtendedRandom rand;
+
+	/*
+	 * blocks of keystream ready for the consumer
+	 */
+	private final RingBuffer<byte[]> full = new RingBuffer<byte[]>(BLOCKS);
+
+	/*
+	 * used blocks ready for the producer to fill
+	 */
+	private final RingBuffer<byte[]> free = new RingBuffer<byte[]>(BLOCKS);
+
+	private volatile boolean closed = false;
+	private volatile Throwable failure = null;
+
+	/*
+	 * block being used by the consumer and the next byte in it
+	 */
+	private byte[] current = null;
+	private int position = 0;
+
+
+	/**
+	 * start making keystream
+	 *
+	 * @param rand seeded generator, used only by the producer from now on
+	 */
+	KeystreamPrefetcher(final ExtendedRandom rand) {
+
+		this.rand = rand;
+
+		for (int i = 0; i < BLOCKS; i++) {
+			free.offer(new byte[RandomCipherInputStream.BLOCK_SIZE]);
+		}
+
+		final Thread producer = new Thread(this, "keystream");
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+
+	/**
+	 * producer: fill free blocks until closed
+	 */
+	public void run() {
+
+		try {
+			while (!closed) {
+
+				// null after close() or a spurious wake up
+				final byte[] block = free.take();
+				if (block != null) {
+					rand.nextBytes(block, 0, block.length);
+					full.offer(block);
+				}
+			}
+		} catch (Throwable e) {
+			failure = e;
+			// wake the consumer to see the failure
+			full.close();
+		}
+	}
+
+
+	/**
+	 * the next byte of keystream
+	 *
+	 * @return keystream byte, as the low byte of an int
+	 * @throws IOException if the producer failed or the prefetcher is closed
+	 */
+	int next() throws IOException {
+
+		if (current == null) {
+			take();
+		}
+
+		final int b = current[position++];
+		if (position == current.length) {
+			release();
+		}
+		return b;
+	}
+
+
+	/**
+	 * XOR the next bytes of keystream into part of an array
+	 *
+	 * @param b array to encrypt or decrypt in place
+	 * @param offset first byte
+	 * @param len number of bytes
+	 * @throws IOException if the producer failed or the prefetcher is closed
+	 */
+	void xor(final byte[] b, int offset, int len) throws IOException {
+
+		while (len > 0) {
+
+			if (current == null) {
+				take();
+			}
+
+			final int n = Math.min(len, current.length - position);
+			final byte[] keystream = current;
+			final int start = position;
+
+			for (int i = 0; i < n; i++) {
+				b[offset + i] ^= keystream[start + i];
+			}
+
+			position += n;
+			offset += n;
+			len -= n;
+
+			if (position == current.length) {
+				release();
+			}
+		}
+	}
+
+
+	/**
+	 * stop the producer. The keystream can't be used afterwards.
+	 */
+	void close() {
+		closed = true;
+		free.close();
+		full.close();
+	}
+
+
+	/**
+	 * wait for the next filled block
+	 * 
+	 * @throws IOException if the producer failed or the prefetcher is closed
+	 */
+	private void take() throws IOException {
+
+		byte[] block;
+
+		while ((block = full.take()) == null) {
+
+			if (failure != null) {
+				throw new IOException("keystream failed", failure);
+			}
+			if (closed) {
+				throw new IOException("keystream closed");
+			}
+
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted");
+			}
+		}
+
+		current = block;
+		position = 0;
+	}
+
+
+	/**
+	 * give the used block back to the producer
+	 */
+	private void release() {
+		free.offer(current);
+		current = null;
+	}
+}
@@ -0,0 +1,187 @@
+package random;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import javax.crypto.Cipher;
+
+import cipher.BufferCipher;
+import prng.FusedMultiRandom;
+import prng.SeedGenerator;
+
+
+/**
+ * ByteBuffer form of the RandomCipher layer, producing the same bytes as
+ * RandomCipherOutputStream and reading the same bytes as RandomCipherInputStream.
+ * When encrypting the nonce is written before the first encrypted byte, when
+ * decrypting it is read from the start of the input.
+ *
+ * @author CLARKM
+ *
+ */
+public class RandomCipher implements BufferCipher {
+
+	/* random number generator, created once the nonce is known */
+	private FusedMultiRandom rand = null;
+	private final byte[] key;
+	private final ByteBuffer nonce;
+	private final int opmode;
+	
+	/* make the keystream ahead on another thread */
+	private final boolean prefetch;
+	private KeystreamPrefetcher prefetcher = null;
+	
+	/* input bytes and keystream, reused for every update */
+	private final byte[] data = new byte[RandomCipherInputStream.BLOCK_SIZE];
+	private final byte[] keystream = new byte[RandomCipherInputStream.BLOCK_SIZE];
+
+
+	/**
+	 * create the layer
+	 *
+	 * @param key encryption key
+	 * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	public RandomCipher(final byte[] key, final int opmode) {
+		this(key, opmode, false);
+	}
+
+
+	/**
+	 * create the layer, optionally making the keystream ahead on another thread. The
+	 * bytes are the same either way.
+	 *
+	 * @param key encryption key
+	 * @param opmode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @param prefetch true to make the keystream on another thread
+	 */
+	public RandomCipher(final byte[] key, final int opmode, final boolean prefetch) {
+
+		this.key = key.clone();
+		this.opmode = opmode;
+		this.prefetch = prefetch;
+		this.nonce = ByteBuffer.allocate(RandomCipherInputStream.nonceSize(key));
+
+		if (opmode == Cipher.ENCRYPT_MODE) {
+			nonce.put(new SeedGenerator().generateSeed(nonce.capacity()));
+			nonce.flip();
+			start();
+		}
+	}
+
+
+	/**
+	 * continue a keystream part way through, from a generator restored to the state it
+	 * had there. There is no nonce to read or write; encrypting and decrypting are the
+	 * same XOR.
+	 *
+	 * @param rand generator at the position to continue from
+	 */
+	public RandomCipher(final FusedMultiRandom rand) {
+
+		this.key = new byte[0];
+		this.opmode = Cipher.DECRYPT_MODE;
+		this.prefetch = false;
+		this.nonce = ByteBuffer.allocate(0);
+		this.rand = rand;
+	}
+
+
+	/**
+	 * the state of the generator after the bytes processed so far, for
+	 * FusedMultiRandom.restore()
+	 *
+	 * @return generator state
+	 */
+	public byte[] getState() {
+
+		if (rand == null) {
+			throw new IllegalStateException("the nonce has not been read");
+		}
+		if (prefetcher != null) {
+			throw new IllegalStateException("the keystream is made ahead, so its state is not known");
+		}
+		return rand.getState();
+	}
+
+
+	public void update(final ByteBuffer in, final ByteBuffer out) {
+
+		if (opmode == Cipher.ENCRYPT_MODE) {
+			out.put(nonce);
+		} else if (rand == null) {
+			while (nonce.hasRemaining() && in.hasRemaining()) {
+				nonce.put(in.get());
+			}
+			if (nonce.hasRemaining()) {
+				return;
+			}
+			start();
+		}
+
+		if (out.remaining() < in.remaining()) {
+			throw new BufferOverflowException();
+		}
+
+		while (in.hasRemaining()) {
+			final int n = Math.min(in.remaining(), data.length);
+			in.get(data, 0, n);
+			
+			if (prefetcher == null) {
+				rand.nextBytes(keystream, 0, n);
+				
+				for (int i = 0; i < n; i++) {
+					data[i] ^= keystream[i];
+				}
+			} else {
+				try {
+					prefetcher.xor(data, 0, n);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+			
+			out.put(data, 0, n);
+		}
+	}
+
+
+	public void doFinal(final ByteBuffer in, final ByteBuffer out) {
+		try {
+			update(in, out);
+			
+			if (rand == null) {
+				throw new IllegalStateException("input ended inside the nonce");
+			}
+		} finally {
+			close();
+		}
+	}
+
+
+	/**
+	 * stop the prefetch thread, if any. Without doFinal this is the only way it stops.
+	 */
+	public void close() {
+		if (prefetcher != null) {
+			prefetcher.close();
+		}
+	}
+
+
+	/**
+	 * create the generator once the nonce is known
+	 */
+	private void start() {
+		rand = new FusedMultiRandom(RandomCipherInputStream.concatenate(key, nonce.array()));
+		if (prefetch) {
+			prefetcher = new KeystreamPrefetcher(rand);
+		}
+	}
+
+
+	public int getOutputSize(final int inputLen) {
+		return inputLen + (opmode == Cipher.ENCRYPT_MODE ? nonce.remaining() : 0);
+	}
+}
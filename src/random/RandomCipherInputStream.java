@@ -6,7 +6,7 @@ import java.io.InputStream;
 import java.util.Arrays;
 
 import RedBox.EncryptionKey;
-import prng.MultiRandom;
+import prng.FusedMultiRandom;
 
 
 /**
@@ -20,8 +20,19 @@ import prng.MultiRandom;
 public class RandomCipherInputStream extends FilterInputStream {
 
 	/* random number generator, pre-seeded.  Suggest a secureRandom variation */
-	private MultiRandom rand;
+	private FusedMultiRandom rand;
 	private InputStream is;
+	
+	/*
+	 * bytes of keystream made at a time
+	 */
+	static final int BLOCK_SIZE = 4096;
+	
+	/* keystream, reused for every read */
+	private final byte[] keystream = new byte[BLOCK_SIZE];
+	
+	/* keystream made ahead on another thread, or null to make it while reading */
+	private KeystreamPrefetcher prefetcher = null;
 
 	
 	/**
@@ -36,6 +47,22 @@ public class RandomCipherInputStream extends FilterInputStream {
 		this(is, key.getBytes());
 	}
 	
+	/**
+	 * create an input stream, optionally making the keystream ahead on another thread.
+	 * The decrypted bytes are the same either way; prefetching only helps when there is
+	 * a processor free for it.
+	 * 
+	 * @param is InputStream
+	 * @param key encryption key
+	 * @param prefetch true to make the keystream on another thread
+	 */
+	public RandomCipherInputStream(final InputStream is, final EncryptionKey key, final boolean prefetch) {
+		this(is, key.getBytes());
+		if (prefetch) {
+			prefetcher = new KeystreamPrefetcher(rand);
+		}
+	}
+	
 	/**
 	 * create an input stream from an existing stream and a source of random numbers. A 
 	 * secureRandom generator is suggested. The same generator, with the same initial seed, is
@@ -47,12 +74,11 @@ public class RandomCipherInputStream extends FilterInputStream {
 	public RandomCipherInputStream(final InputStream is, final byte[] key) {
 		
 		super(is);
-		int nonceSize = Arrays.hashCode(key) & 0xF + 2;
-		final byte[] nonce = new byte[nonceSize];
+		final byte[] nonce = new byte[nonceSize(key)];
 		
 		try { is.read(nonce); } catch (Exception e){};
 		final byte[] newkey = concatenate(key, nonce);
-		this.rand = new MultiRandom(newkey);
+		this.rand = new FusedMultiRandom(newkey);
 		this.is = is;
 	}
 	
@@ -62,7 +88,8 @@ public class RandomCipherInputStream extends FilterInputStream {
 	 * @param seed byte[] with seed
 	 */
 	public void setSeed(final byte[] seed) {
-		((MultiRandom)rand).setSeed(seed);
+		checkSeed();
+		rand.setSeed(seed);
 	}
 	
 	
@@ -71,9 +98,19 @@ public class RandomCipherInputStream extends FilterInputStream {
 	 * @param seed long with seed
 	 */
 	public void setSeed(final long seed) {
+		checkSeed();
 		rand.setSeed(seed);
 	}
 	
+	/**
+	 * the generator belongs to the prefetch thread, which is already ahead
+	 */
+	private void checkSeed() {
+		if (prefetcher != null) {
+			throw new IllegalStateException("the seed can't be changed while the keystream is prefetched");
+		}
+	}
+	
 	/**
 	 * reads a byte from the input stream, possibly blocking to wait for the byte.
 	 * 
@@ -81,7 +118,12 @@ public class RandomCipherInputStream extends FilterInputStream {
 	 * @throws IOException on error
 	 */
 	public int read() throws IOException {
-		return is.read() ^ rand.nextInt();
+		
+		final int b = is.read();
+		if (b < 0) {
+			return -1;
+		}
+		return (b ^ (prefetcher == null ? rand.nextInt() : prefetcher.next())) & 0xFF;
 	}
 
 	/**
@@ -115,15 +157,51 @@ public class RandomCipherInputStream extends FilterInputStream {
 		
 		final int result = is.read(b, offset, len);
 		
-		/* encrypt/decrypt the array */
-		for (int i = 0; i < result; i++) {
-			b[i + offset] ^= rand.nextInt();
+		if (prefetcher != null) {
+			if (result > 0) {
+				prefetcher.xor(b, offset, result);
+			}
+			return result;
+		}
+		
+		/* encrypt/decrypt the array a block of keystream at a time */
+		for (int done = 0; done < result; done += BLOCK_SIZE) {
+			final int n = Math.min(result - done, BLOCK_SIZE);
+			rand.nextBytes(keystream, 0, n);
+			
+			for (int i = 0; i < n; i++) {
+				b[offset + done + i] ^= keystream[i];
+			}
 		}
 		
 		return result;
 	}
 	
 	
+	/**
+	 * close the stream and stop the prefetch thread, if any
+	 * 
+	 * @throws IOException on error
+	 */
+	public void close() throws IOException {
+		if (prefetcher != null) {
+			prefetcher.close();
+		}
+		super.close();
+	}
+	
+	
+	/**
+	 * size of the nonce written at the start of a stream. It depends only on the key.
+	 * 
+	 * @param key encryption key
+	 * @return number of nonce bytes
+	 */
+	public static final int nonceSize(final byte[] key) {
+		return Arrays.hashCode(key) & 0xF + 2;
+	}
+	
+	
 	/**
 	 * concatemate two arrays
 	 * 
@@ -4,10 +4,9 @@ package random;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
 
 import RedBox.EncryptionKey;
-import prng.MultiRandom;
+import prng.FusedMultiRandom;
 import prng.SeedGenerator;
 
 /**
@@ -23,9 +22,15 @@ import prng.SeedGenerator;
 public class RandomCipherOutputStream extends FilterOutputStream {
 
 	/* random number generator, pre-seeded.  Suggest a secureRandom variation */
-	private MultiRandom rand;
+	private FusedMultiRandom rand;
 	private OutputStream os;
 	private SeedGenerator seeds = new SeedGenerator();
+	
+	/* encrypted bytes, reused for every write */
+	private final byte[] buffer = new byte[RandomCipherInputStream.BLOCK_SIZE];
+	
+	/* keystream made ahead on another thread, or null to make it while writing */
+	private KeystreamPrefetcher prefetcher = null;
 
 	/**
 	 * create an input stream from an existing stream and a source of random numbers. A 
@@ -40,17 +45,32 @@ public class RandomCipherOutputStream extends FilterOutputStream {
 	}
 	
 	
+	/**
+	 * create an output stream, optionally making the keystream ahead on another thread.
+	 * The encrypted bytes are the same either way; prefetching only helps when there is
+	 * a processor free for it.
+	 * 
+	 * @param os OutputStream
+	 * @param key encryption key
+	 * @param prefetch true to make the keystream on another thread
+	 */
+	public RandomCipherOutputStream(final OutputStream os, final EncryptionKey key, final boolean prefetch) {
+		this(os, key.getBytes());
+		if (prefetch) {
+			prefetcher = new KeystreamPrefetcher(rand);
+		}
+	}
+	
+	
 	public RandomCipherOutputStream(final OutputStream os, final byte[] key) {
 		
 		super(os);
 		this.os = os;
-		int nonceSize = Arrays.hashCode(key) & 0xF + 2;
-		
-		final byte[] nonce =  seeds.generateSeed(nonceSize);
+		final byte[] nonce =  seeds.generateSeed(RandomCipherInputStream.nonceSize(key));
 		try { os.write(nonce); } catch (Exception e) {}
 		final byte[] newkey = RandomCipherInputStream.concatenate(key, nonce);
 	
-		this.rand = new MultiRandom(newkey);
+		this.rand = new FusedMultiRandom(newkey);
 	}
 	
 	/**
@@ -59,6 +79,7 @@ public class RandomCipherOutputStream extends FilterOutputStream {
 	 * @param seed byte[] seed
 	 */
 	public void setSeed(final long seed) {
+		checkSeed();
 		rand.setSeed(seed);
 	}
 	
@@ -68,9 +89,19 @@ public class RandomCipherOutputStream extends FilterOutputStream {
 	 * @param seed long seed
 	 */
 	public void setSeed(final byte[] seed) {
+		checkSeed();
 		rand.setSeed(seed);
 	}
 	
+	/**
+	 * the generator belongs to the prefetch thread, which is already ahead
+	 */
+	private void checkSeed() {
+		if (prefetcher != null) {
+			throw new IllegalStateException("the seed can't be changed while the keystream is prefetched");
+		}
+	}
+	
 	/**
 	 * write an encrypted byte 
 	 * 
@@ -78,7 +109,7 @@ public class RandomCipherOutputStream extends FilterOutputStream {
 	 * @throw IOException on error
 	 */
 	public final void write(final int b) throws IOException {
-		os.write(b ^ rand.nextInt());
+		os.write(b ^ (prefetcher == null ? rand.nextInt() : prefetcher.next()));
 	}
 
 	
@@ -95,22 +126,47 @@ public class RandomCipherOutputStream extends FilterOutputStream {
 	
 	
 	/**
-	 * write an encrypted/decrypted byte array. This method copies the array so as not to alter the bytes in the
-	 * argument.
+	 * write an encrypted/decrypted byte array. The bytes in the argument are not altered;
+	 * a block of keystream is made in a buffer owned by the stream, the array is XOR'd 
+	 * into it and the buffer is written, so no memory is allocated.
 	 * 
 	 * @param b byte array to write
 	 * @param offset offset of array to process
 	 * @param len number of bytes to process
 	 * @throws IOException on error
 	 */
-	public final void write(final byte[] b, final int offset, final int len) throws IOException {
+	public final void write(final byte[] b, int offset, int len) throws IOException {
 		
-		final byte[] copy = Arrays.copyOfRange(b, offset, offset + len);
-
-		for (int i = 0; i < copy.length; i++) {
-			copy[i] ^= rand.nextInt();
+		while (len > 0) {
+			final int n = Math.min(len, buffer.length);
+			
+			if (prefetcher == null) {
+				rand.nextBytes(buffer, 0, n);
+				
+				for (int i = 0; i < n; i++) {
+					buffer[i] ^= b[offset + i];
+				}
+			} else {
+				System.arraycopy(b, offset, buffer, 0, n);
+				prefetcher.xor(buffer, 0, n);
+			}
+			
+			os.write(buffer, 0, n);
+			offset += n;
+			len -= n;
 		}
-		
-		os.write(copy);
+	}
+	
+	
+	/**
+	 * close the stream and stop the prefetch thread, if any
+	 * 
+	 * @throws IOException on error
+	 */
+	public void close() throws IOException {
+		if (prefetcher != null) {
+			prefetcher.close();
+		}
+		super.close();
 	}
 }